@@ -0,0 +1,188 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/*  Client registry
+ *  Maps participant IDs straight to their current client, without boxing the ID. The IDs are spread over a
+ *  fixed number of partitions, the coordinator uses one per event loop and hands each client to the loop that
+ *  owns its partition. Each partition is an open-addressing table with linear probing, kept at most half full.
+ *
+ *  Lookups take no lock: they read the table optimistically and only fall back to the partition's read lock
+ *  if a put ran at the same time. Puts lock just their own partition. Iteration is weakly consistent, like a
+ *  ConcurrentHashMap's: it sees every client registered before it started and maybe some added since.
+ *  Clients are never removed, the coordinator keeps a participant's client until another connection with
+ *  the same ID replaces it.
+ */
+class ClientRegistry<C> implements Iterable<C> {
+    private final Partition[] partitions;
+
+    ClientRegistry(int partitionCount) {
+        partitions = new Partition[Math.max(1, partitionCount)];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    int partitions() {
+        return partitions.length;
+    }
+
+    // Partition the ID belongs to, which is also the event loop its client is served by
+    int partitionOf(long id) {
+        return partitionIndex(hash(id));
+    }
+
+    // The client registered under id, or null
+    @SuppressWarnings("unchecked")
+    C get(long id) {
+        long hash = hash(id);
+        return (C) partitions[partitionIndex(hash)].get(id, hash);
+    }
+
+    // Registers client under id and returns the client it replaced, or null
+    @SuppressWarnings("unchecked")
+    C put(long id, C client) {
+        long hash = hash(id);
+        return (C) partitions[partitionIndex(hash)].put(id, hash, client);
+    }
+
+    // The high half of the hash picks the partition, the low half the slot within it
+    private int partitionIndex(long hash) {
+        return (int) (((hash >>> 32) * partitions.length) >>> 32);
+    }
+
+    int size() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.size;
+        }
+        return size;
+    }
+
+    @Override
+    public Iterator<C> iterator() {
+        return new Iterator<>() {
+            private int partition = 0, slot = 0;
+            private Table table = partitions[0].table;
+            private C next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public C next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                C client = next;
+                next = advance();
+                return client;
+            }
+
+            @SuppressWarnings("unchecked")
+            private C advance() {
+                while (true) {
+                    while (slot < table.values.length) {
+                        Object value = table.values[slot++];
+                        if (value != null) {
+                            return (C) value;
+                        }
+                    }
+                    if (++partition == partitions.length) {
+                        return null;
+                    }
+                    table = partitions[partition].table;
+                    slot = 0;
+                }
+            }
+        };
+    }
+
+    // Spreads sequential IDs over the whole table (the 64-bit finalizer from MurmurHash3)
+    private static long hash(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        id *= 0xc4ceb9fe1a85ec53L;
+        id ^= id >>> 33;
+        return id;
+    }
+
+    // Keys and values swapped as one on resize, so a reader never sees arrays of different sizes
+    private static final class Table {
+        final long[] keys;
+        final Object[] values; // null marks an empty slot, so any long can be a key
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+        }
+
+        int find(long id, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (values[slot] != null && keys[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    private static final class Partition {
+        private final StampedLock lock = new StampedLock();
+        private volatile Table table = new Table(16);
+        private volatile int size;
+
+        Object get(long id, long hash) {
+            long stamp = lock.tryOptimisticRead();
+            Table current = table;
+            Object value = current.values[current.find(id, hash)];
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    current = table;
+                    value = current.values[current.find(id, hash)];
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return value;
+        }
+
+        Object put(long id, long hash, Object value) {
+            long stamp = lock.writeLock();
+            try {
+                Table current = table;
+                int slot = current.find(id, hash);
+                Object previous = current.values[slot];
+                if (previous == null && (size + 1) * 2 > current.keys.length) {
+                    current = resize(current);
+                    slot = current.find(id, hash);
+                }
+                current.keys[slot] = id;
+                current.values[slot] = value;
+                if (previous == null) {
+                    size++;
+                }
+                return previous;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private Table resize(Table old) {
+            Table bigger = new Table(old.keys.length * 2);
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.values[i] != null) {
+                    int slot = bigger.find(old.keys[i], hash(old.keys[i]));
+                    bigger.keys[slot] = old.keys[i];
+                    bigger.values[slot] = old.values[i];
+                }
+            }
+            table = bigger;
+            return bigger;
+        }
+    }
+}
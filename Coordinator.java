@@ -1,328 +1,1833 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import static java.lang.System.exit;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
 
 public class Coordinator {
 
-    class Message {
-        String message;
-        long timestamp;
-        Message(String message, long timestamp) {this.message = message; this.timestamp = timestamp;}
+    /*  Message
+     *  The DELIVER frame is encoded exactly once when the message is created and every client write or replay
+     *  sends a duplicate() of it, so fan-out to N clients never re-encodes the payload. The writeUTF frame for
+     *  text protocol clients is encoded once as well, the first time a text client needs it.
+     */
+    static class Message {
+        String topic; // null when topics are off
+        byte[] payload; // Raw bytes as sent by the participant (UTF-8 for text protocol participants)
+        long seq; // Position in the retention log, assigned on append
+        long timestamp; // Milliseconds since the epoch
+        final long createdAt = System.nanoTime(); // For the delivery latency metric
+        private final ByteBuffer binaryFrame;
+        private volatile ByteBuffer textFrame;
+
+        Message(String topic, byte[] payload, long seq, long timestamp, boolean direct) {
+            this.topic = topic;
+            this.payload = payload;
+            this.seq = seq;
+            this.timestamp = timestamp;
+
+            byte[] topicBytes = topic == null ? null : topic.getBytes(StandardCharsets.UTF_8);
+            int length = 1 + WireProtocol.varLongSize(seq) + payload.length;
+            if (topicBytes != null) {
+                length += WireProtocol.varLongSize(topicBytes.length) + topicBytes.length;
+            }
+            ByteBuffer frame = direct ? ByteBuffer.allocateDirect(WireProtocol.varLongSize(length) + length)
+                    : ByteBuffer.allocate(WireProtocol.varLongSize(length) + length);
+            WireProtocol.putVarLong(frame, length);
+            frame.put(WireProtocol.DELIVER);
+            WireProtocol.putVarLong(frame, seq);
+            if (topicBytes != null) {
+                WireProtocol.putVarLong(frame, topicBytes.length);
+                frame.put(topicBytes);
+            }
+            frame.put(payload);
+            this.binaryFrame = frame.flip().asReadOnlyBuffer();
+        }
+
+        // A fresh view of the encoded frame for the given protocol, empty if the message can't be sent that way
+        ByteBuffer frame(boolean binary) {
+            if (binary) {
+                return binaryFrame.duplicate();
+            }
+            if (textFrame == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + 2);
+                try {
+                    String text = new String(payload, StandardCharsets.UTF_8);
+                    new DataOutputStream(bytes).writeUTF(topic == null ? text : topic + " " + text);
+                } catch (IOException e) {
+                    Log.warn("Message " + seq + " is too large for text clients, skipping.");
+                    bytes.reset();
+                }
+                textFrame = ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+            }
+            return textFrame.duplicate();
+        }
     };
+
+    /*  Batch
+     *  Messages that go to a client in one gathering write, and what its outbound queue holds. For binary
+     *  clients more than one message goes as a BATCH frame around the messages' own DELIVER frames. The BATCH
+     *  header is encoded once and shared like the frames, so a batch costs the same to queue to N clients
+     *  as a single message does. Text clients just get the messages' writeUTF frames back to back.
+     *  Clients that negotiated deflate get batches of compressThreshold bytes or more as one COMPRESSED frame,
+     *  which is also made once, by whichever writer gets to the batch first, and shared by the rest.
+     */
+    static class Batch {
+        final List<Message> messages;
+        final long bytes; // Payload bytes, what the send budget counts
+        private final int frameBytes; // Size of the batch on the wire, uncompressed
+        private final ByteBuffer header; // null for a single message, which goes as a plain DELIVER frame
+        private ByteBuffer deflated; // COMPRESSED frame, null until made or if compression didn't pay off
+        private boolean deflateTried;
+
+        Batch(List<Message> messages) {
+            this.messages = messages;
+            long payloadBytes = 0;
+            int length = 1 + WireProtocol.varLongSize(messages.size());
+            for (Message message : messages) {
+                payloadBytes += message.payload.length;
+                length += message.binaryFrame.remaining();
+            }
+            this.bytes = payloadBytes;
+            if (messages.size() == 1) {
+                this.header = null;
+                this.frameBytes = length - 1 - WireProtocol.varLongSize(1);
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.allocate(WireProtocol.varLongSize(length) + 1 + WireProtocol.varLongSize(messages.size()));
+            WireProtocol.putVarLong(frame, length);
+            frame.put(WireProtocol.BATCH);
+            WireProtocol.putVarLong(frame, messages.size());
+            this.header = frame.flip().asReadOnlyBuffer();
+            this.frameBytes = WireProtocol.varLongSize(length) + length;
+        }
+
+        /*
+         * Adds fresh views of the batch's frames for the given protocol to frames. compressAbove is the
+         * client's compressThreshold, or -1 if it doesn't take compressed frames.
+         */
+        void frames(List<ByteBuffer> frames, boolean binary, int compressAbove, CoordinatorMetrics metrics) {
+            if (binary && compressAbove >= 0 && frameBytes >= compressAbove) {
+                ByteBuffer compressed = deflate(metrics);
+                if (compressed != null) {
+                    frames.add(compressed.duplicate());
+                    return;
+                }
+            }
+            if (binary && header != null) {
+                frames.add(header.duplicate());
+            }
+            for (Message message : messages) {
+                frames.add(message.frame(binary));
+            }
+        }
+
+        long lastSeq() {
+            return messages.get(messages.size() - 1).seq;
+        }
+
+        private synchronized ByteBuffer deflate(CoordinatorMetrics metrics) {
+            if (deflateTried) {
+                return deflated;
+            }
+            deflateTried = true;
+            List<ByteBuffer> plain = new ArrayList<>();
+            frames(plain, true, -1, metrics);
+            byte[] input = new byte[frameBytes];
+            int offset = 0;
+            for (ByteBuffer frame : plain) {
+                int length = frame.remaining();
+                frame.get(input, offset, length);
+                offset += length;
+            }
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] output = new byte[frameBytes];
+            int compressed;
+            try {
+                deflater.setInput(input);
+                deflater.finish();
+                compressed = deflater.deflate(output);
+                if (!deflater.finished()) {
+                    return null; // Bigger than the original, send that instead
+                }
+            } finally {
+                deflater.end();
+            }
+            metrics.countCompressed(frameBytes, compressed);
+
+            int length = 1 + WireProtocol.varLongSize(frameBytes) + compressed;
+            ByteBuffer frame = ByteBuffer.allocate(WireProtocol.varLongSize(length) + length);
+            WireProtocol.putVarLong(frame, length);
+            frame.put(WireProtocol.COMPRESSED);
+            WireProtocol.putVarLong(frame, frameBytes);
+            frame.put(output, 0, compressed);
+            deflated = frame.flip().asReadOnlyBuffer();
+            return deflated;
+        }
+    }
+
+    /*  Topic
+     *  A retention log with its own T_d, plus the clients subscribed to it so a multicast only visits those.
+     *  With topics off there is a single topic that every registered client follows.
+     *  subscribers is only touched under the fan-out lock.
+     */
+    private static class Topic {
+        final String name; // null for the single topic used when topics are off
+        final RetentionLog log;
+        final long retentionMillis;
+        final Set<Client> subscribers = new LinkedHashSet<>();
+
+        Topic(String name, RetentionLog log, long retentionMillis) {
+            this.name = name;
+            this.log = log;
+            this.retentionMillis = retentionMillis;
+        }
+    }
     
-    // Thread-safe mappings
-    private ConcurrentHashMap<Long, Client> clientMap; // Maps coordinator-assigned clientId to Client object
-    private ConcurrentHashMap<Long, Long> clientIdMap; // Maps client-provided ID to coordinator-assigned ID
-    private ConcurrentLinkedQueue<Message> messageQueue; // Global message queue for multicast messages
+    /*  Replicated session
+     *  What a standby knows about a participant registered with the primary, kept until the participant
+     *  fails over and becomes a Client here. Only changed by the replication thread.
+     */
+    private static class ReplicatedSession {
+        long cursor;
+        long publishSeq; // Last PUBLISH multicast for the participant, its resends after a failover are only acked
+
+        final Set<String> topics = new LinkedHashSet<>();
+    }
+
+    private ClientRegistry<Client> clients; // Maps client-provided ID to its current Client, one partition per event loop
+    private boolean topicsEnabled; // topics=true: msend names a topic and clients get only what they subscribed to
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>(); // Only used with topics on
+    private Topic allClients; // The one topic every registered client follows when topics are off
+    private volatile long lastSeq; // Sequence number of the newest message in any topic, assigned under fanOutLock
+    private boolean directBuffers; // Encode message frames into off-heap buffers
+    private long maxRetentionMillis; // Longest T_d of any topic, for the durable log
+    private DurableLog durableLog; // Memory-mapped copy of the messageLog, null unless logDir is configured
+    private CoordinatorMetrics metrics; // Counters and histograms, see CoordinatorMetrics
+    private RelayLink relay; // Link to the parent coordinator with upstream=host:port, null otherwise
+    private Replicator replicator; // Streams every change to a standby with replicationPort=N, null otherwise
+    private volatile boolean standingBy; // standbyOf=host:port and the primary is still up: participants are turned away
+    private final Map<Long, ReplicatedSession> sessions = new ConcurrentHashMap<>(); // Keyed by participant ID, standby only
 
     private AtomicLong nextClientId = new AtomicLong(0);
 
     private long T_d; // The time of which the coordinator should hold a message for
     private int portNumber; // Port number to listen on
+    private EventLoop[] eventLoops; // Selector threads, clients are assigned to one on accept
+    private int clientQueueCapacity; // Max batches buffered per client before it is demoted to catch-up
+    private long maxBufferedBytes; // Send budget: payload bytes a client may have waiting in its outbound queue
+    private long maxWriteStallNanos; // Send budget: how long one socket write to a client may take
+    private int maxFrameBytes; // Largest binary command frame a client may send
+    private int dataPort; // Shared port for message sockets, 0 when every participant picks its own
+    private boolean virtualThreads; // executionMode=virtual: one blocking virtual thread per client instead of event loops
+    private ThreadFactory clientThreads = Thread::new; // Creates command readers (virtual mode) and writers
+    private final ExecutorService connector = Executors.newCachedThreadPool(); // Accepts message sockets off the event loops
+    private ExecutorService controlExecutor; // Runs control commands off the event loops, null in virtual thread mode
 
-    public Coordinator(String configFile) {
-        clientMap = new ConcurrentHashMap<>();
-        clientIdMap = new ConcurrentHashMap<>();
-        messageQueue = new ConcurrentLinkedQueue<>();
+    private final Map<String, String> options = new HashMap<>(); // Optional name=value settings from the config file
+    private final Object fanOutLock = new Object(); // Orders appends to the messageLog with enqueues to clients
 
+    // Multicast batching, see multicastMessage. The open batch is only touched under the fan-out lock.
+    private long batchWindowNanos; // batchWindowMicros: how long a batch waits for more messages, 0 sends each on its own
+    private long batchMaxBytes; // A batch is sent as soon as it holds this many payload bytes
+    private int compressThreshold; // compression=deflate: smallest batch in bytes worth compressing, -1 when off
+    private Topic openTopic; // Topic of the open batch
+    private List<Message> openBatch; // Appended to the log but not queued to the subscribers yet, null when none is open
+    private long openBytes, openedAt;
+
+    public Coordinator(String configFile) {
         // Read Configuration file
         try (Scanner scanner = new Scanner( new File(configFile) )) {
            this.portNumber = scanner.nextInt();
            this.T_d = scanner.nextLong();
+
+           // Any remaining tokens are optional "name=value" tuning options
+           while (scanner.hasNext()) {
+               String[] option = scanner.next().split("=", 2);
+               if (option.length == 2) {
+                   options.put(option[0], option[1]);
+               }
+           }
         } catch (FileNotFoundException e) {
-            System.out.println("Error: Configuration file not found.");
+            Log.error("Error: Configuration file not found.");
             exit(1);
         }
+
+        Log.setLevel(options.getOrDefault("logLevel", "info"));
+        this.clientQueueCapacity = intOption("clientQueueCapacity", 1024);
+        this.maxBufferedBytes = intOption("maxBufferedBytes", 4 << 20);
+        this.maxWriteStallNanos = intOption("maxWriteStallMs", 2000) * 1_000_000L;
+        this.maxFrameBytes = intOption("maxFrameBytes", 16 << 20);
+        this.batchWindowNanos = intOption("batchWindowMicros", 0) * 1000L;
+        this.batchMaxBytes = intOption("batchMaxBytes", 64 << 10);
+        this.compressThreshold = options.getOrDefault("compression", "none").equals("deflate")
+                ? intOption("compressThreshold", 1024) : -1;
+        this.dataPort = intOption("dataPort", 0);
+        if (options.getOrDefault("executionMode", "eventloop").equals("virtual")) {
+            this.virtualThreads = true;
+            this.clientThreads = virtualThreadFactory();
+        }
+        this.clients = new ClientRegistry<>(virtualThreads ? 1 : Runtime.getRuntime().availableProcessors());
+        if (!virtualThreads) {
+            this.controlExecutor = Executors.newFixedThreadPool(intOption("controlThreads", 2), runnable -> {
+                Thread thread = new Thread(runnable, "control");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.topicsEnabled = Boolean.parseBoolean(options.get("topics"));
+
+        // Relay mode: topics or not is up to the parent, whose messages we pass on
+        if (options.containsKey("upstream")) {
+            relay = new RelayLink(this, options.get("upstream"), Long.parseLong(options.getOrDefault("relayId", String.valueOf((1L << 40) + portNumber))),
+                    intOption("upstreamPublishWindow", 64), options.getOrDefault("compression", "none"));
+            if (!relay.connect()) {
+                exit(1);
+            }
+            if (options.containsKey("topics") && topicsEnabled != relay.topics) {
+                Log.warn("Ignoring topics=" + topicsEnabled + ", the upstream coordinator decides");
+            }
+            topicsEnabled = relay.topics;
+        }
+        this.directBuffers = Boolean.parseBoolean(options.get("directBuffers"));
+        this.allClients = new Topic(null, new RetentionLog(directBuffers), T_d * 1000);
+        this.maxRetentionMillis = T_d * 1000;
+        for (String name : options.keySet()) {
+            if (name.startsWith("topic.") && name.endsWith(".td")) {
+                maxRetentionMillis = Math.max(maxRetentionMillis, Long.parseLong(options.get(name)) * 1000);
+            }
+        }
+        this.metrics = new CoordinatorMetrics(this);
+        if (options.containsKey("replicationPort")) {
+            replicator = new Replicator(options.getOrDefault("replicationAck", "none").equals("sync"),
+                    intOption("replicationTimeoutMs", 1000), intOption("replicationMaxPendingBytes", 64 << 20));
+        }
+        this.standingBy = options.containsKey("standbyOf");
+
+        // Persistent mode: recover the previous run's messages so they can still be replayed on reconnect
+        if (options.containsKey("logDir")) {
+            try {
+                durableLog = new DurableLog(new File(options.get("logDir")), intOption("segmentBytes", 16 << 20),
+                        intOption("fsyncEveryMessages", 0));
+                Log.info("Recovered " + durableLog.recover(this::restoreMessage) + " messages from " + options.get("logDir"));
+            } catch (IOException e) {
+                Log.error("Error opening message log: " + options.get("logDir") + " " + e.getMessage());
+                exit(1);
+            }
+        }
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /*
+     * The topic messages with this name go to, created on first use. Each topic keeps its messages for
+     * topic.<name>.td seconds if that option is set, T_d otherwise. Must be called under the fan-out lock,
+     * which is what keeps the evictor from removing a topic that is about to be used.
+     */
+    private Topic topicFor(String name) {
+        if (!topicsEnabled) {
+            return allClients;
+        }
+        return topics.computeIfAbsent(name == null ? "" : name, topicName -> {
+            String td = options.get("topic." + topicName + ".td");
+            long retentionMillis = td == null ? T_d * 1000 : Long.parseLong(td) * 1000;
+            return new Topic(topicName, new RetentionLog(directBuffers), retentionMillis);
+        });
+    }
+
+    /*
+     * Puts a message recovered from the durable log back into its topic. Sequence numbers are contiguous across
+     * topics, so a gap means messages were lost and everything older is dropped rather than replayed with a hole.
+     */
+    private void restoreMessage(String topicName, byte[] payload, long seq, long timestamp) {
+        synchronized (fanOutLock) {
+            if (lastSeq != 0 && seq != lastSeq + 1) {
+                allClients.log.evictOlderThan(Long.MAX_VALUE);
+                for (Topic topic : topics.values()) {
+                    topic.log.evictOlderThan(Long.MAX_VALUE);
+                }
+            }
+            Topic topic = topicFor(topicName);
+            topic.log.restore(topic.name, payload, seq, timestamp);
+            lastSeq = seq;
+        }
     }
 
     public void run() {
-        System.out.println("Coordinator running. Waiting for connections...");
+        Log.info("Coordinator running. Waiting for connections...");
 
-        // Start worker threads (10 of them)
-        for (long i = 0; i < 10; i++) {
-            final long workerID = i;
-            new Thread(() -> startWorkerThread(workerID)).start();
+        // Metrics are always collected, JMX always sees them and metricsPort adds a local HTTP endpoint
+        metrics.registerMBean();
+        if (options.containsKey("metricsPort")) {
+            try {
+                metrics.startHttpServer(intOption("metricsPort", 0));
+            } catch (IOException e) {
+                Log.error("Error starting metrics endpoint on port: " + options.get("metricsPort") + " " + e.getMessage());
+            }
         }
-        
-        // Listen for any new connections, adding them to the clientMap & clientIdMap when doing so
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
-            while (true) { 
-                Socket newParticipant = serverSocket.accept(); // Listen and accept on a new connections
 
-                // Get the client side ID of the new participant
-                DataInputStream dataIn = new DataInputStream( newParticipant.getInputStream() );
-                long clientID = dataIn.readLong();
+        // A single background task drops messages that have fallen out of their topic's T_d window
+        ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor();
+        long evictionInterval = intOption("evictionIntervalMs", 1000);
+        evictor.scheduleAtFixedRate(() -> {
+            long now = System.currentTimeMillis();
+            int evicted = allClients.log.evictOlderThan(now - allClients.retentionMillis);
+            for (Topic topic : topics.values()) {
+                evicted += topic.log.evictOlderThan(now - topic.retentionMillis);
+            }
+            metrics.countEvicted(evicted);
+
+            // Forget topics nobody follows and that have nothing left to replay
+            synchronized (fanOutLock) {
+                topics.values().removeIf(topic -> topic.subscribers.isEmpty() && topic.log.size() == 0);
+            }
+            if (durableLog != null) {
+                durableLog.deleteOlderThan(now - maxRetentionMillis);
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+        evictor.scheduleAtFixedRate(metrics::sample, 1, 1, TimeUnit.SECONDS);
+
+        // Hot standby: the primary streams its changes to the standby, which takes over when the stream ends
+        if (replicator != null) {
+            try {
+                replicator.listen(intOption("replicationPort", 0), this::attachStandby);
+            } catch (IOException e) {
+                Log.error("Error listening on replication port: " + options.get("replicationPort") + " " + e.getMessage());
+                exit(1);
+            }
+            long cursorInterval = intOption("replicationCursorMs", 100);
+            evictor.scheduleAtFixedRate(this::replicateCursors, cursorInterval, cursorInterval, TimeUnit.MILLISECONDS);
+        }
+        if (standingBy) {
+            String[] hostAndPort = options.get("standbyOf").split(":");
+            new Thread(() -> {
+                try {
+                    Replicator.follow(hostAndPort[0], Integer.parseInt(hostAndPort[1]), standbyTarget(),
+                            intOption("promoteAfterMs", 2000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                standingBy = false;
+                Log.warn("Taking over from the primary with " + sessions.size() + " participants to resume");
+            }, "replication-follower").start();
+        }
+
+        // With a batch window, a batch that doesn't fill up is sent when its window runs out
+        if (batchWindowNanos > 0) {
+            Thread batcher = new Thread(this::sendExpiredBatches, "batcher");
+            batcher.setDaemon(true);
+            batcher.start();
+        }
+
+        // Batched fsync of the durable log
+        if (durableLog != null && intOption("fsyncIntervalMs", 1000) > 0) {
+            long fsyncInterval = intOption("fsyncIntervalMs", 1000);
+            evictor.scheduleAtFixedRate(durableLog::sync, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+
+        // Start one event loop per core, each owning a Selector for the command channels assigned to it
+        eventLoops = new EventLoop[virtualThreads ? 0 : clients.partitions()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            try {
+                eventLoops[i] = new EventLoop(i);
+            } catch (IOException e) {
+                Log.error("Error opening selector for event loop " + i + " " + e.getMessage());
+                exit(1);
+            }
+            new Thread(eventLoops[i], "event-loop-" + i).start();
+        }
+        
+        // Listen for message sockets on the shared data port
+        if (dataPort != 0) {
+            try {
+                ServerSocketChannel dataServer = ServerSocketChannel.open();
+                dataServer.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                dataServer.bind(new InetSocketAddress(dataPort));
+                new Thread(() -> acceptDataConnections(dataServer), "data-acceptor").start();
+            } catch (IOException e) {
+                Log.error("Error listening on data port: " + dataPort + " " + e.getMessage());
+                exit(1);
+            }
+        }
 
-                // Assign a new coodinator ID to the client
-                clientIdMap.put(clientID, nextClientId.incrementAndGet());
-                System.out.println("New Client Connected: " + nextClientId);
+        // A relay starts getting the parent's messages as soon as it is registered
+        if (relay != null) {
+            if (!relay.register(intOption("upstreamMessagePort", 0))) {
+                Log.error("Error registering with upstream coordinator: " + options.get("upstream"));
+                exit(1);
+            }
+            Log.info("Relaying from upstream coordinator " + options.get("upstream"));
+        }
 
-                // Create client object and add to clientMap
-                Client newClient = new Client(clientID, newParticipant);
-                // Key: coordinator-assigned ID, Value: Client object
-                clientMap.put(clientIdMap.get(clientID), newClient);
+        // Listen for any new connections, adding them to the client registry when doing so
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            while (true) { 
+                SocketChannel newParticipant = serverChannel.accept(); // Listen and accept on a new connections
 
+                try {
+                    acceptParticipant(newParticipant);
+                } catch (IOException e) {
+                    // A failed handshake only costs that connection, keep accepting
+                    Log.error("Error accepting participant: " + e.getMessage());
+                    newParticipant.close();
+                }
             }
         } catch (IOException e) {
-            System.out.println("Error listening on port: " + portNumber + " " + e.getMessage());
-        }
-    }
-
-    // Placeholder: Worker threads handle client communication
-    // Worker thread listens for assigned clients
-    // Initially, workers make sure the messageQueue is full of items [T_now - T_d, ..., T_now]
-    // Handles messages for clients with (coordinatorId % 10 == workerId)
-    // Process messages: registration, deregistration, disconnect, reconnect, multicast
-    private void startWorkerThread(long workerID) {
-        while (true) { 
-            // While the queue is not empty and the message at the front is stale, remove it
-            while (!messageQueue.isEmpty() && isStaleMessage(messageQueue.peek())) {
-                messageQueue.poll();
-            }
-
-            // Handle all clients assigned to this worker (workerID % i) == 0
-            for (long key: clientMap.keySet()) {
-                if ((key % 10) == workerID && clientMap.containsKey(key)) {
-                    Client client = clientMap.get(key);
-
-                    try { 
-                        // If data is available, read the command from the client
-                        if (client.commandDataIn.available() > 0) {
-                            String command = client.commandDataIn.readUTF();
-                            System.out.println("Command received from client " + key + " : " + command);
-
-                            String[] parts = command.split(" ");
-                            switch (parts[0]) {
-                                case ("register") -> registerClient(Long.parseLong(parts[2]), Integer.parseInt(parts[1]));
-                                case ("deregister") -> deregisterClient(Long.parseLong(parts[1]));
-                                case ("disconnect") -> disconnectClient(Long.parseLong(parts[1]));
-                                case("reconnect") -> reconnectClient(Long.parseLong(parts[2]), Integer.parseInt(parts[1]));
-                                case ("msend") -> {
-                                    String[] message = command.split(" ", 2);
-                                    multicastMessage(message[1]);
-                                }
-                                default -> {
-                                }
-                            }
-                            
-                            // Send awknoledgement to client that you processed command
-                            client.commandDataOut.writeUTF("OK");
+            Log.error("Error listening on port: " + portNumber + " " + e.getMessage());
+        }
+    }
 
-                        }
+    // Reads the handshake of a newly accepted participant and hands its command channel to a reader
+    private void acceptParticipant(SocketChannel newParticipant) throws IOException {
+        // A standby only serves participants once the primary is gone
+        if (standingBy) {
+            Log.info("Turning away a participant, the primary is still up");
+            newParticipant.close();
+            return;
+        }
+
+        // Get the client side ID of the new participant (the channel is still blocking at this point,
+        // the timeout only applies to these stream reads so a silent connection can't hold up the accept loop)
+        newParticipant.socket().setSoTimeout(5000);
+        DataInputStream dataIn = new DataInputStream( newParticipant.socket().getInputStream() );
+        long clientID = dataIn.readLong();
+
+        // Participants that want the binary protocol say so before sending their ID,
+        // we accept and tell them the shared data port (0 if there is none) and whether messages carry a topic.
+        // Compression is used if the participant offers it and we are configured for it.
+        boolean binary = clientID == WireProtocol.BINARY_HELLO || clientID == WireProtocol.BINARY_HELLO_FLAGS;
+        boolean deflate = false;
+        boolean resume = false;
+        if (binary) {
+            boolean offersFlags = clientID == WireProtocol.BINARY_HELLO_FLAGS;
+            clientID = dataIn.readLong();
+            long offered = offersFlags ? WireProtocol.readVarLong(dataIn) : 0;
+            deflate = compressThreshold >= 0 && (offered & WireProtocol.FLAG_DEFLATE) != 0;
+            resume = (offered & WireProtocol.FLAG_RESUME) != 0;
+            DataOutputStream dataOut = new DataOutputStream(newParticipant.socket().getOutputStream());
+            dataOut.writeByte(1);
+            WireProtocol.writeVarLong(dataOut, dataPort);
+            WireProtocol.writeVarLong(dataOut, (topicsEnabled ? WireProtocol.FLAG_TOPICS : 0) | (deflate ? WireProtocol.FLAG_DEFLATE : 0));
+        }
+
+        // Assign a new coodinator ID to the client
+        long assignedId = nextClientId.incrementAndGet();
+        Log.info("New Client Connected: " + assignedId);
+
+        // Create client object and add it to the registry, replacing any earlier connection with the same ID
+        Client newClient = new Client(clientID, newParticipant, binary, this);
+        newClient.assignedId = assignedId;
+        newClient.deflate = deflate;
+        ReplicatedSession session = sessions.remove(clientID);
+        Client previous = clients.get(clientID);
+        if (session != null) {
+            resumeSession(newClient, session);
+        } else if (previous != null) {
+            takeOverSession(newClient, previous, resume);
+        }
+        clients.put(clientID, newClient);
+
+        if (virtualThreads) {
+            // Give the client its own thread doing plain blocking reads
+            Thread reader = clientThreads.newThread(() -> serveClient(newClient));
+            reader.setName("client-" + assignedId);
+            reader.start();
+        } else {
+            // Hand the command channel to the event loop owning its partition, from now on it is only touched when readable
+            eventLoops[clients.partitionOf(clientID)].assign(newClient);
+        }
+    }
+
+    /*  Event loop
+     *  Each event loop owns a Selector and the command channels of the clients assigned to it in run().
+     *  The loop sleeps in select() and only wakes up when one of its channels is readable, at which point it
+     *  reads whatever bytes are available and dispatches every complete command frame.
+     */
+    private class EventLoop implements Runnable {
+        private final int loopId;
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Client> pending = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int loopId) throws IOException {
+            this.loopId = loopId;
+            this.selector = Selector.open();
+        }
+
+        // Called from the accepting thread, the actual registration happens on the loop thread
+        void assign(Client client) throws IOException {
+            client.commandChannel.configureBlocking(false);
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    Log.error("Error selecting on event loop " + loopId + " " + e.getMessage());
+                    continue;
+                }
+
+                // Register any newly assigned clients
+                Client newClient;
+                while ((newClient = pending.poll()) != null) {
+                    try {
+                        newClient.commandChannel.register(selector, SelectionKey.OP_READ, newClient);
                     } catch (IOException e) {
-                        System.out.println("Error reading from client: " + key + " " + e.getMessage());
+                        Log.error("Error registering client: " + newClient.assignedId + " " + e.getMessage());
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        handleReadable(key, (Client) key.attachment());
                     }
+                }
+            }
+        }
+
+        // A failed read drops the client's command connection, never the loop and the other clients on it
+        private void handleReadable(SelectionKey key, Client client) {
+            try {
+                if (client.commandChannel.read(client.inbound) < 0) {
+                    Log.info("Client " + client.assignedId + " closed its command connection");
+                    key.cancel();
+                    closeCommandChannel(client);
+                    return;
+                }
+
+                processInbound(client);
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error reading from client: " + client.assignedId + " " + e);
+                key.cancel();
+                closeCommandChannel(client);
+            }
+        }
+    }
+
+    /*  Virtual thread mode
+     *  Each client gets its own (virtual) thread that blocks on its command channel. The bytes read are
+     *  dispatched by the same processInbound() the event loops use, so both modes share every command handler.
+     */
+    private void serveClient(Client client) {
+        try {
+            while (client.commandChannel.read(client.inbound) >= 0) {
+                processInbound(client);
+            }
+            Log.info("Client " + client.assignedId + " closed its command connection");
+        } catch (IOException | RuntimeException e) {
+            Log.error("Error reading from client: " + client.assignedId + " " + e);
+        }
+        closeCommandChannel(client);
+    }
+
+    private static void closeCommandChannel(Client client) {
+        try {
+            client.commandChannel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // Dispatches every complete command frame read into the client's inbound buffer
+    private void processInbound(Client client) throws IOException {
+        client.inbound.flip();
+        if (client.binary) {
+            drainBinaryFrames(client);
+        } else {
+            drainTextFrames(client);
+        }
+        client.inbound.compact();
+
+        // A frame larger than the buffer can only be completed by growing it. Buffers start small, so most
+        // clients never need more; a writeUTF frame may always be up to 2 + 0xFFFF bytes.
+        if (!client.inbound.hasRemaining()) {
+            int maxBytes = client.binary ? maxFrameBytes : Math.max(maxFrameBytes, 2 + 0xFFFF);
+            if (client.inbound.capacity() >= maxBytes) {
+                throw new IOException("Command frame exceeds " + maxBytes + " bytes");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(client.inbound.capacity() * 2, maxBytes));
+            client.inbound.flip();
+            client.inbound = bigger.put(client.inbound);
+        }
+    }
+
+    // Dispatch every complete writeUTF frame (2 byte length + modified UTF-8) in the buffer
+    private void drainTextFrames(Client client) throws IOException {
+        while (client.inbound.remaining() >= 2) {
+            int length = Short.toUnsignedInt(client.inbound.getShort(client.inbound.position()));
+            if (client.inbound.remaining() < 2 + length) {
+                break;
+            }
+            byte[] frame = new byte[2 + length];
+            client.inbound.get(frame);
+            String command = new DataInputStream(new ByteArrayInputStream(frame)).readUTF();
+            try {
+                dispatchCommand(client, command);
+            } catch (RuntimeException e) {
+                rejectCommand(client, command, e);
+            }
+        }
+    }
+
+    // Dispatch every complete binary frame ([varint length][opcode][body]) straight from the buffer
+    private void drainBinaryFrames(Client client) throws IOException {
+        ByteBuffer inbound = client.inbound;
+        while (inbound.hasRemaining()) {
+            int frameStart = inbound.position();
+            long length = WireProtocol.getVarLong(inbound);
+            if (length < 0 || inbound.remaining() < length) {
+                inbound.position(frameStart);
+                break;
+            }
+            int frameEnd = inbound.position() + (int) length;
+            // The limit keeps a frame whose fields run past its length from reading into the next one
+            int limit = inbound.limit();
+            inbound.limit(frameEnd);
+            byte opcode = length > 0 ? inbound.get() : 0;
+            try {
+                dispatchBinaryCommand(client, opcode, inbound, frameEnd);
+            } catch (RuntimeException e) {
+                rejectCommand(client, WireProtocol.name(opcode), e);
+            } finally {
+                inbound.limit(limit);
+            }
+            inbound.position(frameEnd);
+        }
+
+        // One cumulative ack covers every PUBLISH frame in this read
+        if (client.ackPending) {
+            client.ackPending = false;
+            client.acknowledgePublished(client.lastPublishSeq);
+        }
+    }
+
+    /*
+     * A command we couldn't make sense of (missing fields, a number that isn't one, a frame cut short) is
+     * logged and answered with OK, like a command we don't know: the participant is waiting for a reply and
+     * the protocol has no error response. The connection and everything else on the loop carry on.
+     */
+    private void rejectCommand(Client client, String command, RuntimeException e) throws IOException {
+        Log.warn("Ignoring malformed command from client " + client.assignedId + " : " + command + " (" + e + ")");
+        client.acknowledge();
+    }
+
+    // Virtual threads are Java 21+, looked up reflectively so the coordinator still builds and runs on 17
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            Log.warn("Virtual threads need Java 21, using platform threads per client instead.");
+            return Thread::new;
+        }
+    }
+
+    // Process messages: registration, deregistration, disconnect, reconnect, multicast, subscriptions
+    private void dispatchCommand(Client client, String command) throws IOException {
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Command received from client " + client.assignedId + " : " + command);
+        }
+
+        String[] parts = command.split(" ");
+        metrics.countCommand(parts[0]);
+        // Fields are checked and parsed here, a malformed command fails before anything is handed off
+        switch (parts[0]) {
+            case ("register"), ("reconnect") -> {
+                // register|reconnect <port> <id>
+                int port = Integer.parseInt(textField(parts, 1));
+                long clientProvidedId = Long.parseLong(textField(parts, 2));
+                if (parts[0].equals("register")) {
+                    control(client, () -> registerClient(clientProvidedId, port));
+                } else {
+                    control(client, () -> reconnectClient(clientProvidedId, port, 0));
+                }
+                return;
+            }
+            case ("deregister"), ("disconnect") -> {
+                // deregister|disconnect <id>
+                long clientProvidedId = Long.parseLong(textField(parts, 1));
+                if (parts[0].equals("deregister")) {
+                    control(client, () -> deregisterClient(clientProvidedId));
+                } else {
+                    control(client, () -> disconnectClient(clientProvidedId));
+                }
+                return;
+            }
+            case ("msend") -> {
+                if (topicsEnabled) {
+                    // msend <topic> <message>
+                    String[] message = command.split(" ", 3);
+                    publish(textField(message, 1), (message.length > 2 ? message[2] : "").getBytes(StandardCharsets.UTF_8));
+                } else {
+                    String[] message = command.split(" ", 2);
+                    publish(null, textField(message, 1).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            case ("subscribe"), ("unsubscribe") -> {
+                // subscribe|unsubscribe <topic> <id>
+                String topicName = textField(parts, 1);
+                long clientProvidedId = Long.parseLong(textField(parts, 2));
+                boolean subscribe = parts[0].equals("subscribe");
+                control(client, () -> subscribeClient(clientProvidedId, topicName, subscribe));
+                return;
+            }
+            default -> {
+            }
+        }
+        
+        // Send awknoledgement to client that you processed command
+        client.acknowledge();
+    }
+
+    // Field i of a split text command, failing the command if it is missing
+    private static String textField(String[] parts, int i) {
+        if (i >= parts.length) {
+            throw new IllegalArgumentException("missing field " + i);
+        }
+        return parts[i];
+    }
+
+    // Same as dispatchCommand, but the fields are read directly from the frame in the client's buffer
+    private void dispatchBinaryCommand(Client client, byte opcode, ByteBuffer frame, int frameEnd) throws IOException {
+        if (Log.isEnabled(Log.DEBUG)) {
+            Log.debug("Command received from client " + client.assignedId + " : " + WireProtocol.name(opcode));
+        }
+        metrics.countCommand(WireProtocol.name(opcode));
 
+        switch (opcode) {
+            // Control commands are parsed here, the frame is gone once the buffer is compacted
+            case WireProtocol.REGISTER -> {
+                int port = (int) WireProtocol.getVarLong(frame);
+                long clientProvidedId = WireProtocol.getVarLong(frame);
+                control(client, () -> registerClient(clientProvidedId, port));
+                return;
+            }
+            case WireProtocol.DEREGISTER, WireProtocol.DISCONNECT -> {
+                long clientProvidedId = WireProtocol.getVarLong(frame);
+                boolean deregister = opcode == WireProtocol.DEREGISTER;
+                control(client, () -> {
+                    if (deregister) {
+                        deregisterClient(clientProvidedId);
+                    } else {
+                        disconnectClient(clientProvidedId);
+                    }
+                });
+                return;
+            }
+            case WireProtocol.RECONNECT -> {
+                int port = (int) WireProtocol.getVarLong(frame);
+                long clientProvidedId = WireProtocol.getVarLong(frame);
+                // A participant says where it got to, see reconnectClient
+                long cursor = frame.position() < frameEnd ? WireProtocol.getVarLong(frame) : 0;
+                control(client, () -> reconnectClient(clientProvidedId, port, cursor));
+                return;
+            }
+            case WireProtocol.MSEND -> {
+                String topic = topicsEnabled ? readTopic(frame) : null;
+                byte[] payload = new byte[frameEnd - frame.position()];
+                frame.get(payload);
+                publish(topic, payload);
+            }
+            case WireProtocol.SUBSCRIBE, WireProtocol.UNSUBSCRIBE -> {
+                long clientProvidedId = WireProtocol.getVarLong(frame);
+                byte[] topic = new byte[frameEnd - frame.position()];
+                frame.get(topic);
+                String topicName = new String(topic, StandardCharsets.UTF_8);
+                boolean subscribe = opcode == WireProtocol.SUBSCRIBE;
+                control(client, () -> subscribeClient(clientProvidedId, topicName, subscribe));
+                return;
+            }
+            case WireProtocol.PUBLISH -> {
+                // Resends of something we already multicast are only acked again
+                long publishSeq = WireProtocol.getVarLong(frame);
+                if (publishSeq > client.lastPublishSeq) {
+                    String topic = topicsEnabled ? readTopic(frame) : null;
+                    byte[] payload = new byte[frameEnd - frame.position()];
+                    frame.get(payload);
+                    publish(topic, payload, client, publishSeq);
+                    client.lastPublishSeq = publishSeq;
                 }
+                client.ackPending = true;
+                return;
             }
+            default -> {
+            }
+        }
 
+        client.acknowledge();
+    }
+
+    /*  Control lane
+     *  Membership changes and subscriptions don't run on the event loop that read them but on the control
+     *  executor (controlThreads, default 2), which acks them. An event loop can spend a long time fanning out a
+     *  burst of msends from its clients, and a disconnect or reconnect queued behind them would wait for all of
+     *  it; on the control lane it only waits for the fan-out lock, which no single message holds for long.
+     *  Participants wait for the OK of a control command before sending anything else, so handing it off never
+     *  reorders a participant's own commands. The time from reading the command to writing its OK goes into
+     *  the command ack histogram. In virtual thread mode each participant already has its own thread and the
+     *  command runs right there.
+     */
+    private void control(Client client, ControlCommand command) {
+        long readAt = System.nanoTime();
+        Runnable task = () -> {
+            try {
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    // e.g. an ID nobody registered with, answered like any other command we can't make sense of
+                    Log.warn("Command from client " + client.assignedId + " failed: " + e);
+                }
+                client.acknowledge();
+                metrics.commandAck.record(System.nanoTime() - readAt);
+            } catch (IOException e) {
+                Log.error("Error running command from client: " + client.assignedId + " " + e.getMessage());
+            }
+        };
+        if (controlExecutor == null) {
+            task.run();
+        } else {
+            controlExecutor.execute(task);
         }
     }
 
+    private interface ControlCommand {
+        void run() throws IOException;
+    }
+
+    // Reads a varint length prefixed topic name from a binary frame
+    private static String readTopic(ByteBuffer frame) {
+        byte[] topic = new byte[(int) WireProtocol.getVarLong(frame)];
+        frame.get(topic);
+        return new String(topic, StandardCharsets.UTF_8);
+    }
+
     /*  Register Client
      *  Upon booting up the participant executable, every participant will connect to the coordinator and 
-     *  be assigned a coordintor-assigned ID and have a client object created in the clientMap.
+     *  be assigned a coordintor-assigned ID and have a client object created in the client registry.
      *  The participant will then be able to send messages to the coordinator.
      * 
-     * 1. Get the assigned coordinator ID of the client (this is assigned upon launching Participant.java) so it will always be present.
-     * 2. Get the client object of the clientID (this is also assigned upon launching Participant.java).
-     * 3. Start a serverSocket and await connection for the message socket from participant.
-     * 4. Set connected to True, last message received is the current time, messageSocket is the socket received on the serverSocket.accpet().
-     * 5. Create data streams for the message socket.
+     * 1. Get the client object of the participant (created when Participant.java connected) so it will always be present.
+     * 2. Await the message socket from the participant, either on the port it asked for or on the shared data port (port 0).
+     * 3. Once it arrives, set connected to True and the sequence cursor to the newest message (see attachMessageChannel).
+     *    With topics off the client now follows the single topic, with topics on it has to subscribe.
+     * 4. Start the writer thread for the message channel.
      */
     public void registerClient(long clientProvidedId, int port) throws IOException{
-        // Find assigned coordinator ID
-        Long assignedId = clientIdMap.get(clientProvidedId);
-
-        Client client = clientMap.get(assignedId);
-        // If client hasn't been registered yet, create a new message socket for it
-        if (client.messageSocket == null) {
-            try (ServerSocket messageServerSocket = new ServerSocket(port)) {
-                // Send message to client that youre ready to accept socket
-                client.commandDataOut.writeUTF("OK");
-                client.commandDataOut.flush();
-                
-                Socket messageSocket = messageServerSocket.accept();
-                
-                client.setConnected(true);
-                client.lastMsgReceived = getCurrentTimeInSeconds();
-                client.messageSocket = messageSocket;
-                client.messageDataIn = new DataInputStream(messageSocket.getInputStream());
-                client.messageDataOut = new DataOutputStream(messageSocket.getOutputStream());
+        Client client = clients.get(clientProvidedId);
+        // If client hasn't been registered yet, wait for a new message socket for it
+        if (client.messageChannel == null) {
+            synchronized (fanOutLock) {
+                client.registered = true;
+                replicate(Replicator.REGISTER, clientProvidedId, lastSeq, null);
             }
+            awaitMessageChannel(client, port, false);
         }
     }
 
     /*  Deregister client
-        1. Get the coordinator-assigned ID of the client
-        2. Get the client object of the client
-        3. Set connected to false
-        4. Close and set messageSocket to null
-        5. Close data streams from message socket
+        1. Get the client object of the client
+        2. Set connected to false
+        3. Close and set messageChannel to null
 
-        NOTE: We still maintain the client object in the client map and the coordianor-asssigned ID in the clientIdMap
+        NOTE: We still maintain the client object in the client registry
         This is to ensure we still can read from commandSocket and process any future commands (i.e register).
      */
     public void deregisterClient(long clientProvidedId) {
-        Long assignedID = clientIdMap.get(clientProvidedId);
-        Client client = clientMap.get(assignedID);
+        Client client = clients.get(clientProvidedId);
 
         try {
-            // Set connected to false
-            client.setConnected(false);
-            // Close and set messsae socket to null
-            client.messageSocket.close();
-            client.messageSocket = null;
+            // Set connected to false, stop the writer and close the message socket
+            closeMessageChannel(client);
 
-            // Close data streams from message socket
-            client.messageDataIn.close();
-            client.messageDataOut.close();
+            // A deregistered client follows nothing, it starts over if it registers again
+            synchronized (fanOutLock) {
+                for (Topic topic : client.subscriptions) {
+                    topic.subscribers.remove(client);
+                }
+                client.subscriptions.clear();
+                client.registered = false;
+                replicate(Replicator.DEREGISTER, clientProvidedId, 0, null);
+            }
 
             // Send awknoledgement to client
-            client.commandDataOut.writeUTF("OK");
-            client.commandDataOut.flush();
+            client.acknowledge();
         } catch (IOException e) {
-            System.out.println("Error deregistering client: " + clientProvidedId + " " + e.getMessage());
+            Log.error("Error deregistering client: " + clientProvidedId + " " + e.getMessage());
         }
     }
 
     /*  Disconnect client
      * 
      *  NOTE: This method works similar to deregister client. We set connected to false and close the message socket.
+     *  Undelivered messages are replayed on reconnect.
      */
     public void disconnectClient(long clientProvidedId) {
-        Long assignedId = clientIdMap.get(clientProvidedId);
-        Client client = clientMap.get(assignedId);
+        Client client = clients.get(clientProvidedId);
         try {
-            client.setConnected(false);
-
-            // Close message socket
-            client.messageSocket.close();
-            client.messageSocket = null;
-
-            // Close data streams
-            client.messageDataIn.close();
-            client.messageDataOut.close();
+            closeMessageChannel(client);
             
             // Send awk back
-            client.commandDataOut.writeUTF("OK");
-            client.commandDataOut.flush();
+            client.acknowledge();
         } catch (IOException e) {
-            System.out.println("Error disconnecting client: " + clientProvidedId + " " + e.getMessage());
+            Log.error("Error disconnecting client: " + clientProvidedId + " " + e.getMessage());
         }
     }
 
     /*  Reconnect client
      * 
      *  NOTE: This method works similar to register client. We get the portNumber from command and 
-     *  create a new message socket for the client.
+     *  wait for a new message socket for the client, then replay everything after its cursor.
+     *  A binary participant passes the last sequence number it received (kept on disk across restarts),
+     *  which wins over ours: we count a message as delivered once it is written to the socket, not once
+     *  it has arrived (0 keeps ours). A participant restarting after we lost track of it, say after our own
+     *  restart, is registered again from its cursor. A cursor past our newest message is from before a restart
+     *  without logDir, whose numbering started over at 1: that participant gets everything we retain, and
+     *  takes its new cursor from those messages.
      */
-    public void reconnectClient(long clientProvidedId, int port) {
-        Long assignedId = clientIdMap.get(clientProvidedId);
-        Client client = clientMap.get(assignedId);
+    public void reconnectClient(long clientProvidedId, int port, long cursor) {
+        Client client = clients.get(clientProvidedId);
         
-        try (ServerSocket messageServerSocket = new ServerSocket(port)) {
+        try {
+            if (cursor > 0) {
+                synchronized (fanOutLock) {
+                    if (cursor > lastSeq) {
+                        Log.warn("Participant " + clientProvidedId + " resumes after message " + cursor
+                                + " but we are only at " + lastSeq + ", replaying everything retained");
+                        cursor = 0;
+                    }
+                    client.lastSeqDelivered = cursor;
+                    if (!client.registered) {
+                        client.registered = true;
+                        replicate(Replicator.REGISTER, clientProvidedId, cursor, null);
+                    }
+                }
+            }
+            awaitMessageChannel(client, port, true);
+        } catch (IOException e) {
+            Log.error("Error reconnecting client: " + clientProvidedId + " " + e.getMessage());
+        }
+    }
+
+    /*  Subscribe / unsubscribe
+     *  Adds the client to or removes it from the topic's subscribers. A subscription gets every message sent to
+     *  the topic from then on, and while the client is disconnected its next reconnect replays the topic along
+     *  with the others. With topics off every registered client already gets everything, so this does nothing.
+     */
+    public void subscribeClient(long clientProvidedId, String topicName, boolean subscribe) {
+        if (!topicsEnabled) {
+            Log.warn("Ignoring " + (subscribe ? "subscribe" : "unsubscribe") + " from " + clientProvidedId + ", topics are off");
+            return;
+        }
+        Client client = clients.get(clientProvidedId);
+        if (relay != null && subscribe) {
+            relay.follow(topicName);
+        }
+        synchronized (fanOutLock) {
+            sendOpenBatch(); // Goes to the subscribers it was multicast to
+            Topic topic = topicFor(topicName);
+            if (subscribe) {
+                topic.subscribers.add(client);
+                client.subscriptions.add(topic);
+            } else {
+                topic.subscribers.remove(client);
+                client.subscriptions.remove(topic);
+            }
+            replicate(subscribe ? Replicator.SUBSCRIBE : Replicator.UNSUBSCRIBE, clientProvidedId, 0, topicName);
+        }
+    }
+
+    /*
+     * Acknowledges the register/reconnect and arranges for the participant's message socket to be attached
+     * without blocking the calling event loop. With port 0 the participant dials the shared data port and
+     * identifies itself; otherwise we listen on the requested port and accept on the connector pool.
+     */
+    private void awaitMessageChannel(Client client, int port, boolean replay) throws IOException {
+        ServerSocketChannel messageServerSocket = null;
+        if (port != 0 || dataPort == 0) {
+            messageServerSocket = ServerSocketChannel.open();
+            try {
+                messageServerSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                messageServerSocket.bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                messageServerSocket.close();
+                throw e;
+            }
+        }
 
-            client.commandDataOut.writeUTF("OK");
-            client.commandDataOut.flush();
+        synchronized (fanOutLock) {
+            client.awaitingMessageChannel = true;
+            client.replayOnAttach = replay;
+        }
 
-            // Create new sockets
-            Socket messageSocket = messageServerSocket.accept();
+        // Send message to client that youre ready to accept socket
+        client.acknowledge();
 
-            // Set connected to true
-            client.setConnected(true);
-            
-            // Assign message socket 
-            client.messageSocket = messageSocket;
+        if (messageServerSocket != null) {
+            ServerSocketChannel listener = messageServerSocket;
+            connector.execute(() -> {
+                try (listener) {
+                    attachMessageChannel(client, listener.accept());
+                } catch (IOException e) {
+                    Log.error("Error accepting message socket for client: " + client.assignedId + " " + e.getMessage());
+                }
+            });
+        }
+    }
 
-            // Assign data streams
-            client.messageDataIn = new DataInputStream(messageSocket.getInputStream());
-            client.messageDataOut = new DataOutputStream(messageSocket.getOutputStream());
-            
-            // Messages will be retrieved from the queue when needed
-            for (Message nextMessage : messageQueue) {
-                if (nextMessage.timestamp > client.lastMsgReceived) {
-                    client.messageDataOut.writeUTF(nextMessage.message);
-                    client.messageDataOut.flush();
-                    client.lastMsgReceived = nextMessage.timestamp;
+    /*
+     * Makes channel the client's message channel and starts delivery. A register starts after the newest
+     * message; a reconnect replays everything after the client's cursor in the topics it follows, merged back
+     * into sequence order. Collecting the replay and setting
+     * connected to true happen under the fan-out lock, so no multicast can slip in between the replay and the
+     * live messages.
+     */
+    private void attachMessageChannel(Client client, SocketChannel channel) throws IOException {
+        synchronized (fanOutLock) {
+            if (!client.awaitingMessageChannel) {
+                // Disconnected again before the message socket arrived
+                channel.close();
+                return;
+            }
+            client.awaitingMessageChannel = false;
+            client.messageChannel = channel;
+            sendOpenBatch(); // Its messages are either behind the cursor or in the replay
+
+            // With topics off, a registered client, or one reconnecting from a new connection, follows everything
+            if (!topicsEnabled) {
+                allClients.subscribers.add(client);
+                client.subscriptions.add(allClients);
+            }
+
+            if (client.replayOnAttach) {
+                List<Message> backlog = replayFor(client, Integer.MAX_VALUE);
+                metrics.replaySizes.record(backlog.size());
+                client.setConnected(true);
+                client.startWriter(backlog);
+            } else {
+                client.lastSeqDelivered = lastSeq;
+                client.setConnected(true);
+                client.startWriter(new ArrayList<>());
+            }
+        }
+    }
+
+    // Up to limit messages after the client's cursor in the topics it follows, in sequence order
+    private List<Message> replayFor(Client client, int limit) {
+        List<Message> backlog = new ArrayList<>();
+        for (Topic topic : client.subscriptions) {
+            backlog.addAll(topic.log.replayFrom(client.lastSeqDelivered, limit));
+        }
+        if (client.subscriptions.size() > 1) {
+            backlog.sort(Comparator.comparingLong(message -> message.seq));
+            if (backlog.size() > limit) {
+                backlog = new ArrayList<>(backlog.subList(0, limit));
+            }
+        }
+        return backlog;
+    }
+
+    /*  Slow consumers
+     *  A connected client that goes over its send budget (more than maxBufferedBytes or clientQueueCapacity
+     *  messages waiting, or a socket write stuck for more than maxWriteStallMs) is demoted to lagging, much like
+     *  a disconnect: multicasts skip it, so it can never slow down fan-out to everyone else. Its writer keeps
+     *  going at the client's own pace, first through what was already queued and then through the retention
+     *  log from its cursor, the same way a reconnect replays. Messages that fall out of T_d before it gets to
+     *  them are lost, as they would be for a disconnected client.
+     */
+    private void demote(Client client) {
+        client.lagging = true;
+        metrics.countDemoted();
+        Log.warn("Client " + client.assignedId + " is over its send budget, moving it to catch-up from the retention log");
+    }
+
+    /*
+     * Next batch for a lagging client's writer. When there is nothing left after its cursor the client rejoins
+     * live fan-out; that last check is made under the fan-out lock, so no multicast can land between the last
+     * message it catches up on and the first live one.
+     */
+    private List<Message> catchUpBatch(Client client) {
+        List<Message> batch = replayFor(client, Client.CATCH_UP_BATCH);
+        if (batch.isEmpty()) {
+            synchronized (fanOutLock) {
+                sendOpenBatch(); // Skips this client, so what was in it is in the replay
+                batch = replayFor(client, Client.CATCH_UP_BATCH);
+                if (batch.isEmpty()) {
+                    client.lagging = false;
+                    metrics.countCaughtUp();
+                    Log.info("Client " + client.assignedId + " caught up, back on live delivery");
                 }
             }
+        }
+        return batch;
+    }
 
-        } catch (IOException e) {
-            System.out.println("Error reconnecting client: " + clientProvidedId + " " + e.getMessage());
+    private void closeMessageChannel(Client client) throws IOException {
+        synchronized (fanOutLock) {
+            client.awaitingMessageChannel = false;
+            client.setConnected(false);
+            client.stopWriter();
+            if (client.messageChannel != null) {
+                client.messageChannel.close();
+                client.messageChannel = null;
+            }
+        }
+    }
+
+    /*
+     * The writer could not write to the client's message socket, so the participant is gone without saying so.
+     * It is treated as disconnected, as disconnectClient would without the ack: nothing is queued for it any
+     * more, what was queued is dropped, and its next reconnect replays from lastSeqDelivered. A channel that
+     * a reconnect has already replaced is left alone.
+     */
+    private void dropMessageChannel(Client client, SocketChannel channel) {
+        synchronized (fanOutLock) {
+            if (client.messageChannel != channel) {
+                return;
+            }
+            try {
+                closeMessageChannel(client);
+            } catch (IOException e) {
+                // Already gone
+            }
+            client.outbound.clear();
+            client.queuedBytes.set(0);
+            client.lagging = false;
+        }
+    }
+
+    /*
+     * Shared data port: participants open their message socket here and send their own ID as a long,
+     * which is matched to the client waiting for a message channel. The handshake runs on the connector
+     * pool so a slow participant can't hold up the acceptor.
+     */
+    private void acceptDataConnections(ServerSocketChannel dataServer) {
+        while (true) {
+            try {
+                SocketChannel channel = dataServer.accept();
+                connector.execute(() -> {
+                    try {
+                        channel.socket().setSoTimeout(5000);
+                        long clientProvidedId = new DataInputStream(channel.socket().getInputStream()).readLong();
+                        Client client = clients.get(clientProvidedId);
+                        if (client == null) {
+                            Log.warn("Data connection from unknown participant: " + clientProvidedId);
+                            channel.close();
+                            return;
+                        }
+                        attachMessageChannel(client, channel);
+                    } catch (IOException e) {
+                        Log.error("Error reading data connection handshake " + e.getMessage());
+                    }
+                });
+            } catch (IOException e) {
+                Log.error("Error accepting on data port: " + dataPort + " " + e.getMessage());
+            }
         }
     }
 
     /*  Multicast message
      *  
-     * NOTE: Here, we get the message from the client and add it to the global message queue. 
-     * Then, we iterate through all the clients and if the client is currently connected then  we send the messsage
-     * through theyr message socket.
+     * NOTE: Here, we get the message from the client and append it to its topic's retention log with the next
+     * sequence number. Then, we iterate through the topic's subscribers and if the client is currently connected
+     * then we enqueue the message on their outbound queue. Each client's writer thread does the actual socket write, so a slow
+     * participant never holds up the sender or the other participants, and one that can't keep up is demoted
+     * to catch-up instead of piling up messages (see demote).
+     *
+     * With batchWindowMicros=N, messages are not queued one by one. They collect in an open batch that is
+     * queued to the subscribers as one Batch, and so sent in one write, once it is N microseconds old, holds
+     * batchMaxBytes of payload, or the next message is for another topic. A batch never spans topics, so
+     * every client still receives messages in sequence order. Anything that looks at the subscribers
+     * together with a cursor (attach, catch-up, subscribe) sends the open batch first.
      */
-    public void multicastMessage(String msg) {
-        
-        // Create message object
-        Message message = new Message(msg, getCurrentTimeInSeconds());
-        // Add to message queue
-        messageQueue.add(message);
+    public void multicastMessage(String topicName, byte[] payload) {
+        multicastMessage(topicName, payload, null, 0);
+    }
 
-        for (Client client: clientMap.values()) {
-            if (client.isConnected) {
+    private void multicastMessage(String topicName, byte[] payload, Client publisher, long publishSeq) {
+        long started = System.nanoTime();
+        synchronized (fanOutLock) {
+            // Append to the topic's retention log under the next sequence number
+            Topic topic = topicFor(topicName);
+            Message message = topic.log.append(topic.name, payload, lastSeq + 1);
+            lastSeq = message.seq;
+            if (durableLog != null) {
                 try {
-                    client.messageDataOut.writeUTF(message.message);
-                    client.messageDataOut.flush();
-
-                    client.lastMsgReceived = message.timestamp;   
+                    durableLog.append(message);
                 } catch (IOException e) {
-                    System.out.println("Error sending multicast message.");
+                    Log.error("Error writing message " + message.seq + " to the message log " + e.getMessage());
+                }
+            }
+            if (replicator != null && publisher != null) {
+                replicator.published(message, publisher.clientId, publishSeq);
+            } else if (replicator != null) {
+                replicator.message(message);
+            }
+
+            if (batchWindowNanos == 0) {
+                queueBatch(topic, new Batch(List.of(message)));
+            } else {
+                if (openBatch != null && openTopic != topic) {
+                    sendOpenBatch();
+                }
+                if (openBatch == null) {
+                    openBatch = new ArrayList<>();
+                    openTopic = topic;
+                    openBytes = 0;
+                    openedAt = System.nanoTime();
+                    fanOutLock.notifyAll(); // Wakes the batcher
+                }
+                openBatch.add(message);
+                openBytes += payload.length;
+                if (openBytes >= batchMaxBytes) {
+                    sendOpenBatch();
                 }
             }
         }
-        
+        metrics.countMulticast();
+        metrics.fanOut.record(System.nanoTime() - started);
+    }
+
+    // A participant's msend: multicast here, or on a relay, sent to the parent to come back down in its order
+    private void publish(String topicName, byte[] payload) {
+        publish(topicName, payload, null, 0);
+    }
+
+    // A pipelined PUBLISH also tells the standby which publish sequence number it was
+    private void publish(String topicName, byte[] payload, Client publisher, long publishSeq) {
+        if (relay != null) {
+            relay.forward(topicName, payload);
+        } else {
+            multicastMessage(topicName, payload, publisher, publishSeq);
+        }
+    }
+
+    // Enqueues a batch to every live subscriber of the topic, must be called under the fan-out lock
+    private void queueBatch(Topic topic, Batch batch) {
+        long now = System.nanoTime();
+        for (Client client: topic.subscribers) {
+            if (!client.isConnected || client.lagging) {
+                continue;
+            }
+            if (client.overBudget(now, batch.bytes) || !client.outbound.offer(batch)) {
+                demote(client);
+            } else {
+                client.queuedBytes.addAndGet(batch.bytes);
+            }
+        }
+    }
+
+    // Queues the open batch, if there is one, must be called under the fan-out lock
+    private void sendOpenBatch() {
+        if (openBatch != null) {
+            queueBatch(openTopic, new Batch(openBatch));
+            openBatch = null;
+            openTopic = null;
+        }
+    }
+
+    // Batcher thread: sends each open batch once its window has run out
+    private void sendExpiredBatches() {
+        try {
+            while (true) {
+                long remaining;
+                synchronized (fanOutLock) {
+                    while (openBatch == null) {
+                        fanOutLock.wait();
+                    }
+                    remaining = openedAt + batchWindowNanos - System.nanoTime();
+                    if (remaining <= 0) {
+                        sendOpenBatch();
+                        continue;
+                    }
+                }
+                LockSupport.parkNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            // Never interrupted, the batcher lives as long as the coordinator
+        }
+    }
+
+    // Groups messages into batches of up to batchMaxBytes of payload, for replays and catch-up
+    private List<Batch> batchesOf(List<Message> messages) {
+        List<Batch> batches = new ArrayList<>();
+        int start = 0;
+        long bytes = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            bytes += messages.get(i).payload.length;
+            if (bytes >= batchMaxBytes || i == messages.size() - 1) {
+                batches.add(new Batch(messages.subList(start, i + 1)));
+                start = i + 1;
+                bytes = 0;
+            }
+        }
+        return batches;
+    }
+
+    // Adds a membership record to the replication stream, must be called under the fan-out lock
+    private void replicate(byte type, long participantId, long cursor, String topic) {
+        if (replicator != null) {
+            replicator.session(type, participantId, cursor, topic);
+        }
+    }
+
+    /*
+     * A new standby gets everything we hold before the live stream: retained messages in sequence order, then
+     * every registered participant with its cursor and subscriptions (including ones we are still holding for
+     * a failover of our own). Taken under the fan-out lock so nothing changes halfway through.
+     */
+    private void attachStandby(Socket socket) {
+        synchronized (fanOutLock) {
+            try {
+                replicator.attach(socket);
+            } catch (IOException e) {
+                Log.error("Error attaching standby " + e.getMessage());
+                return;
+            }
+            List<Message> retained = new ArrayList<>(allClients.log.replayFrom(0, Integer.MAX_VALUE));
+            for (Topic topic : topics.values()) {
+                retained.addAll(topic.log.replayFrom(0, Integer.MAX_VALUE));
+            }
+            retained.sort(Comparator.comparingLong(message -> message.seq));
+            for (Message message : retained) {
+                replicator.message(message);
+            }
+
+            for (Client client : clients) {
+                if (client.registered) {
+                    replicate(Replicator.REGISTER, client.clientId, client.lastSeqDelivered, null);
+                    replicate(Replicator.PUBLISHED, client.clientId, client.lastPublishSeq, null);
+                    for (Topic topic : client.subscriptions) {
+                        if (topic.name != null) {
+                            replicate(Replicator.SUBSCRIBE, client.clientId, 0, topic.name);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<Long, ReplicatedSession> entry : sessions.entrySet()) {
+                replicate(Replicator.REGISTER, entry.getKey(), entry.getValue().cursor, null);
+                replicate(Replicator.PUBLISHED, entry.getKey(), entry.getValue().publishSeq, null);
+                for (String topic : entry.getValue().topics) {
+                    replicate(Replicator.SUBSCRIBE, entry.getKey(), 0, topic);
+                }
+            }
+            replicator.snapshotTaken();
+        }
+    }
+
+    // Sends the cursor of every participant that has been delivered something since the last time
+    private void replicateCursors() {
+        synchronized (fanOutLock) {
+            for (Client client : clients) {
+                long cursor = client.lastSeqDelivered;
+                if (client.registered && cursor != client.replicatedCursor) {
+                    client.replicatedCursor = cursor;
+                    replicate(Replicator.CURSOR, client.clientId, cursor, null);
+                }
+            }
+        }
+    }
+
+    // Applies the primary's stream on a standby
+    private Replicator.Standby standbyTarget() {
+        return new Replicator.Standby() {
+            @Override
+            public void reset() {
+                synchronized (fanOutLock) {
+                    allClients.log.evictOlderThan(Long.MAX_VALUE);
+                    for (Topic topic : topics.values()) {
+                        topic.log.evictOlderThan(Long.MAX_VALUE);
+                    }
+                    sessions.clear();
+                }
+            }
+
+            @Override
+            public void restore(String topicName, byte[] payload, long seq, long timestamp) {
+                // Unlike recovery, topics evicted at different times leave gaps here, so nothing is dropped for one
+                synchronized (fanOutLock) {
+                    Topic topic = topicFor(topicName);
+                    topic.log.restore(topic.name, payload, seq, timestamp);
+                    lastSeq = Math.max(lastSeq, seq);
+                }
+            }
+
+            @Override
+            public void session(byte type, long participantId, long cursor, String topic) {
+                switch (type) {
+                    case Replicator.REGISTER -> sessions.computeIfAbsent(participantId, id -> new ReplicatedSession()).cursor = cursor;
+                    case Replicator.DEREGISTER -> sessions.remove(participantId);
+                    default -> {
+                        ReplicatedSession session = sessions.get(participantId);
+                        if (session == null) {
+                            return;
+                        }
+                        switch (type) {
+                            case Replicator.CURSOR -> session.cursor = cursor;
+                            case Replicator.PUBLISHED -> session.publishSeq = cursor;
+                            case Replicator.SUBSCRIBE -> session.topics.add(topic);
+                            case Replicator.UNSUBSCRIBE -> session.topics.remove(topic);
+                            default -> {
+                            }
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /*
+     * Picks up where the primary left off with a participant that has failed over to us: it is registered,
+     * follows the same topics and has the replicated cursor, so its reconnect replays what it missed. Its
+     * publish sequence number comes along too, so a PUBLISH it resends that the primary multicast is only acked.
+     */
+    private void resumeSession(Client client, ReplicatedSession session) {
+        synchronized (fanOutLock) {
+            client.registered = true;
+            client.lastSeqDelivered = session.cursor;
+            client.replicatedCursor = session.cursor;
+            client.lastPublishSeq = session.publishSeq;
+            for (String topicName : session.topics) {
+                Topic topic = topicFor(topicName);
+                topic.subscribers.add(client);
+                client.subscriptions.add(topic);
+            }
+            replicate(Replicator.REGISTER, client.clientId, session.cursor, null);
+            replicate(Replicator.PUBLISHED, client.clientId, session.publishSeq, null);
+            for (String topicName : session.topics) {
+                replicate(Replicator.SUBSCRIBE, client.clientId, 0, topicName);
+            }
+        }
+        Log.info("Resuming participant " + client.clientId + " from the primary at message " + session.cursor);
+    }
+
+    /*
+     * A participant that restarted connects again under the same ID while we still hold its old connection.
+     * The new one inherits the registration, subscriptions and cursor, and the old message channel is closed,
+     * so the participant carries on with a reconnect instead of registering again. With resume it is the same
+     * participant on a new connection (FLAG_RESUME), and its publish sequence number carries over as well.
+     */
+    private void takeOverSession(Client client, Client previous, boolean resume) throws IOException {
+        closeMessageChannel(previous);
+        synchronized (fanOutLock) {
+            client.registered = previous.registered;
+            client.lastSeqDelivered = previous.lastSeqDelivered;
+            client.replicatedCursor = previous.replicatedCursor;
+            for (Topic topic : previous.subscriptions) {
+                topic.subscribers.remove(previous);
+                topic.subscribers.add(client);
+                client.subscriptions.add(topic);
+            }
+            previous.subscriptions.clear();
+            // A restarted participant numbers its publishes from 1 again
+            client.lastPublishSeq = resume ? previous.lastPublishSeq : 0;
+            replicate(Replicator.PUBLISHED, client.clientId, client.lastPublishSeq, null);
+        }
+        if (client.registered) {
+            Log.info("Participant " + client.clientId + " came back, taking over its session at message " + client.lastSeqDelivered);
+        }
+    }
+
+    // Records a standby has not applied yet, -1 when there is none
+    public long getReplicationLag() {
+        return replicator == null ? -1 : replicator.lag();
     }
 
     /*
-     * This method checks if the message is older than T_now - T_d
+     * Current number of batches waiting in each connected client's outbound queue, keyed by participant ID.
      */
-    private Boolean isStaleMessage(Message message) {
-        return (getCurrentTimeInSeconds() - this.T_d) > message.timestamp;
+    public Map<Long, Integer> getOutboundQueueDepths() {
+        Map<Long, Integer> depths = new HashMap<>();
+        for (Client client : clients) {
+            if (client.isConnected) {
+                depths.put(client.clientId, client.outbound.size());
+            }
+        }
+        return depths;
+    }
+
+    public int getRetainedMessages() {
+        int retained = allClients.log.size();
+        for (Topic topic : topics.values()) {
+            retained += topic.log.size();
+        }
+        return retained;
+    }
+
+    public long getRetainedBytes() {
+        long retained = allClients.log.bytes();
+        for (Topic topic : topics.values()) {
+            retained += topic.log.bytes();
+        }
+        return retained;
+    }
+
+    public int getTopicCount() {
+        return topicsEnabled ? topics.size() : 1;
+    }
+
+    public int getLaggingClients() {
+        int lagging = 0;
+        for (Client client : clients) {
+            if (client.isConnected && client.lagging) {
+                lagging++;
+            }
+        }
+        return lagging;
     }
 
-    private Long getCurrentTimeInSeconds() {
-        return System.currentTimeMillis() / 1000;
+    public int getConnectedClients() {
+        int connected = 0;
+        for (Client client : clients) {
+            if (client.isConnected) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /*
+     * How far each connected client is behind in the topics it follows, keyed by participant ID. In messages,
+     * or with millis set, in milliseconds since the oldest message it has not been sent yet (0 when caught up).
+     */
+    public Map<Long, Long> getClientLag(boolean millis) {
+        Map<Long, Long> lag = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (Client client : clients) {
+            if (!client.isConnected) {
+                continue;
+            }
+            long cursor = client.lastSeqDelivered;
+            long behind = 0, oldestUnsent = now;
+            for (Topic topic : client.subscriptions) {
+                behind += topic.log.countAfter(cursor);
+                Message first = topic.log.firstAfter(cursor);
+                if (first != null) {
+                    oldestUnsent = Math.min(oldestUnsent, first.timestamp);
+                }
+            }
+            lag.put(client.clientId, millis ? now - oldestUnsent : behind);
+        }
+        return lag;
     }
 
     // Inner class representing a client
     private static class Client {
-        private long clientId, lastMsgReceived;
-        private Socket commandSocket, messageSocket;
-        private DataInputStream commandDataIn, messageDataIn;
-        private DataOutputStream commandDataOut, messageDataOut;
-        private boolean isConnected;
+        private static final byte[] OK_FRAME = {1, WireProtocol.OK};
+        private static final int WRITE_BATCH = 64; // Most batches handed to one gathering write
+        private static final int CATCH_UP_BATCH = 1024; // Most messages read from retention per catch-up step
+        private static final int INBOUND_BYTES = 1024; // Initial command buffer, enough for typical commands
+
+        private long clientId, assignedId;
+        private volatile long lastSeqDelivered; // Sequence cursor, advanced by the writer thread as messages hit the socket
+        private SocketChannel commandChannel;
+        private SocketChannel messageChannel; // Blocking channel, only written by the writer thread
+        private ByteBuffer inbound; // Partially read command frames, only touched by the owning event loop
+        private boolean binary; // Negotiated binary protocol instead of writeUTF text
+        private boolean deflate; // Negotiated compression of large deliveries
+        private volatile long lastPublishSeq; // Highest pipelined publish sequence multicast for this client, replicated
+        private boolean ackPending; // A PUBLISH was read and not yet acked
+        private volatile boolean isConnected;
+        private boolean registered; // Registered and not deregistered since, changed under fanOutLock
+        private long replicatedCursor; // lastSeqDelivered as of the last CURSOR record sent to the standby
+        private boolean awaitingMessageChannel, replayOnAttach; // Register/reconnect acked, message socket not here yet
+        private final ArrayBlockingQueue<Batch> outbound; // Batches waiting for the writer thread
+        private final AtomicLong queuedBytes = new AtomicLong(); // Payload bytes in outbound
+        private volatile long writeStartedAt; // nanoTime the current socket write began, 0 between writes
+        private volatile boolean lagging; // Over its send budget, fed from the retention log instead of outbound
+        private Thread writer;
+        private final Coordinator owner;
+        private final Set<Topic> subscriptions = ConcurrentHashMap.newKeySet(); // Changed under fanOutLock only
 
-        public Client(long clientId, Socket commandSocket) throws IOException {
+        public Client(long clientId, SocketChannel commandChannel, boolean binary, Coordinator owner) {
             this.clientId = clientId;
+            this.binary = binary;
             this.isConnected = false; // Initially not connected
-            this.lastMsgReceived = 0;
+            this.lastSeqDelivered = 0;
 
-            this.commandSocket = commandSocket;
-            this.commandDataIn = new DataInputStream(commandSocket.getInputStream());
-            this.commandDataOut = new DataOutputStream(commandSocket.getOutputStream());
+            this.commandChannel = commandChannel;
+            this.inbound = ByteBuffer.allocate(INBOUND_BYTES); // Grown by processInbound for larger frames
 
-            this.messageSocket = null;
+            this.messageChannel = null;
+            this.outbound = new ArrayBlockingQueue<>(owner.clientQueueCapacity);
+            this.owner = owner;
         }
 
         public void setConnected(boolean status) {
             this.isConnected = status;
         }
+
+        // Over its send budget: too many bytes waiting, or the current socket write has been stuck too long.
+        // A message bigger than the whole budget still goes out when nothing else is waiting.
+        boolean overBudget(long now, long bytes) {
+            long writing = writeStartedAt, queued = queuedBytes.get();
+            return (queued > 0 && queued + bytes > owner.maxBufferedBytes)
+                    || (writing != 0 && now - writing > owner.maxWriteStallNanos);
+        }
+
+        /*
+         * Starts the writer thread for the current message channel. The backlog is written before anything
+         * in the outbound queue, which is cleared first so nothing from a previous connection is resent.
+         * The writer drains whatever has queued up and hands the pre-encoded frames to a single gathering write.
+         * The backlog and catch-up go out in batches of up to batchMaxBytes.
+         * Once a lagging client's queue is empty, the writer switches to catch-up batches from the retention log.
+         * (A client is only ever demoted while it has something queued or a write in progress, so the writer
+         * can't be parked in take() when that happens.)
+         */
+        public void startWriter(List<Message> backlog) {
+            outbound.clear();
+            queuedBytes.set(0);
+            lagging = false;
+            SocketChannel channel = messageChannel;
+            writer = owner.clientThreads.newThread(() -> {
+                List<ByteBuffer> frames = new ArrayList<>();
+                List<Batch> drained = new ArrayList<>(WRITE_BATCH);
+                try {
+                    deliverAll(channel, frames, backlog);
+                    while (!Thread.currentThread().isInterrupted()) {
+                        if (lagging && outbound.isEmpty()) {
+                            deliverAll(channel, frames, owner.catchUpBatch(this));
+                            continue;
+                        }
+                        drained.add(outbound.take());
+                        outbound.drainTo(drained, WRITE_BATCH - 1);
+                        deliver(channel, frames, drained);
+                        long written = System.nanoTime(), bytes = 0;
+                        for (Batch batch : drained) {
+                            for (Message message : batch.messages) {
+                                owner.metrics.delivery.record(written - message.createdAt);
+                            }
+                            bytes += batch.bytes;
+                        }
+                        queuedBytes.addAndGet(-bytes);
+                        drained.clear();
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped by deregister/disconnect
+                } catch (IOException e) {
+                    if (isConnected) {
+                        Log.error("Error sending multicast message to client " + assignedId + " " + e.getMessage());
+                        owner.dropMessageChannel(this, channel);
+                    }
+                }
+            });
+            writer.setName("writer-" + assignedId);
+            writer.start();
+        }
+
+        public void stopWriter() {
+            if (writer != null) {
+                writer.interrupt();
+                writer = null;
+            }
+        }
+
+        private void deliverAll(SocketChannel channel, List<ByteBuffer> frames, List<Message> messages) throws IOException {
+            for (Batch batch : owner.batchesOf(messages)) {
+                deliver(channel, frames, List.of(batch));
+            }
+        }
+
+        private void deliver(SocketChannel channel, List<ByteBuffer> frames, List<Batch> batches) throws IOException {
+            int compressAbove = deflate ? owner.compressThreshold : -1;
+            for (Batch batch : batches) {
+                batch.frames(frames, binary, compressAbove, owner.metrics);
+            }
+            ByteBuffer[] buffers = frames.toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            frames.clear();
+            writeStartedAt = System.nanoTime();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            writeStartedAt = 0;
+            lastSeqDelivered = batches.get(batches.size() - 1).lastSeq();
+        }
+
+        /*
+         * Sends OK in whichever protocol the client negotiated.
+         */
+        public void acknowledge() throws IOException {
+            if (owner.replicator != null) {
+                owner.replicator.awaitReplicated();
+            }
+            if (binary) {
+                writeFully(ByteBuffer.wrap(OK_FRAME));
+            } else {
+                reply("OK");
+            }
+        }
+
+        /*
+         * Sends a cumulative ACK for every pipelined publish up to and including publishSeq.
+         */
+        public void acknowledgePublished(long publishSeq) throws IOException {
+            if (owner.replicator != null) {
+                owner.replicator.awaitReplicated();
+            }
+            ByteBuffer frame = ByteBuffer.allocate(2 + WireProtocol.varLongSize(publishSeq));
+            WireProtocol.putVarLong(frame, 1 + WireProtocol.varLongSize(publishSeq));
+            frame.put(WireProtocol.ACK);
+            WireProtocol.putVarLong(frame, publishSeq);
+            writeFully(frame.flip());
+        }
+
+        /*
+         * Writes a writeUTF framed response on the non-blocking command channel.
+         */
+        public void reply(String response) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeUTF(response);
+            writeFully(ByteBuffer.wrap(bytes.toByteArray()));
+        }
+
+        // Responses are tiny, so we simply retry until the whole frame has been written
+        private synchronized void writeFully(ByteBuffer frame) throws IOException {
+            while (frame.hasRemaining()) {
+                if (commandChannel.write(frame) == 0) {
+                    Thread.yield();
+                }
+            }
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,312 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*  Coordinator metrics
+ *  Counters and histograms updated on the hot paths, plus gauges that are only computed when someone looks.
+ *  Updates are LongAdder increments or LatencyHistogram records, so they never contend on a lock.
+ *      commands           count of each command type received (publish is a pipelined msend)
+ *      command acks       time from reading a control command (register, disconnect, ...) to writing its OK
+ *      fan-out            time multicastMessage takes to append and enqueue a message, lock wait included
+ *      delivery           time from a message being multicast to its write to each client's socket
+ *      replay sizes       messages replayed per reconnect
+ *      demotions          clients moved to catch-up for going over their send budget, and how many caught up
+ *      evictions          messages that fell out of their topic's T_d window
+ *      compression        bytes of batches compressed with compression=deflate, before and after
+ *      client lag         how far each connected client's cursor is behind in the topics it follows, in messages
+ *                         and in milliseconds since the oldest message it has not been sent
+ *      client queue depth batches waiting in each connected client's outbound queue for its writer
+ *      replication lag    records the standby has not applied yet, -1 without a standby
+ *  Per-second rates are recomputed by sample(), which the coordinator calls once a second.
+ *
+ *  Everything is readable over JMX (pp3:type=Coordinator) and, with metricsPort=N, as plain text lines
+ *  from http://localhost:N/metrics.
+ */
+public class CoordinatorMetrics implements CoordinatorMetricsMXBean {
+    static final String[] COMMANDS = {"register", "deregister", "disconnect", "reconnect", "msend", "publish", "subscribe", "unsubscribe", "other"};
+
+    private final Coordinator coordinator;
+    private final long startedAt = System.currentTimeMillis();
+
+    private final Map<String, LongAdder> commands = new LinkedHashMap<>();
+    private final LongAdder multicast = new LongAdder();
+    private final LongAdder demoted = new LongAdder();
+    private final LongAdder caughtUp = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder compressedIn = new LongAdder();
+    private final LongAdder compressedOut = new LongAdder();
+    final LatencyHistogram commandAck = new LatencyHistogram();
+    final LatencyHistogram fanOut = new LatencyHistogram();
+    final LatencyHistogram delivery = new LatencyHistogram();
+    final LatencyHistogram replaySizes = new LatencyHistogram();
+
+    // Rates over the last sample() interval
+    private final Map<String, Long> lastCommandCounts = new LinkedHashMap<>();
+    private volatile Map<String, Double> commandRates = new LinkedHashMap<>();
+    private long lastEvicted, lastSampleAt = System.nanoTime();
+    private volatile double evictionRate;
+
+    public CoordinatorMetrics(Coordinator coordinator) {
+        this.coordinator = coordinator;
+        for (String command : COMMANDS) {
+            commands.put(command, new LongAdder());
+            lastCommandCounts.put(command, 0L);
+        }
+    }
+
+    public void countCommand(String command) {
+        commands.getOrDefault(command, commands.get("other")).increment();
+    }
+
+    public void countMulticast() {
+        multicast.increment();
+    }
+
+    public void countDemoted() {
+        demoted.increment();
+    }
+
+    public void countCaughtUp() {
+        caughtUp.increment();
+    }
+
+    public void countEvicted(int messages) {
+        evicted.add(messages);
+    }
+
+    public void countCompressed(int bytesIn, int bytesOut) {
+        compressedIn.add(bytesIn);
+        compressedOut.add(bytesOut);
+    }
+
+    /*
+     * Recomputes the per-second rates from the counters, called by the coordinator's background task.
+     */
+    public synchronized void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSampleAt) / 1e9;
+        lastSampleAt = now;
+
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> entry : commands.entrySet()) {
+            long count = entry.getValue().sum();
+            rates.put(entry.getKey(), (count - lastCommandCounts.put(entry.getKey(), count)) / seconds);
+        }
+        commandRates = rates;
+
+        long evictedNow = evicted.sum();
+        evictionRate = (evictedNow - lastEvicted) / seconds;
+        lastEvicted = evictedNow;
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("pp3:type=Coordinator"));
+        } catch (JMException e) {
+            Log.error("Error registering metrics MBean " + e.getMessage());
+        }
+    }
+
+    // Serves render() on http://localhost:port/metrics
+    public void startHttpServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /*
+     * Every metric as "name{label="value"} number" lines, the format Prometheus scrapes.
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        line(out, "uptime_seconds", "", getUptimeSeconds());
+        for (Map.Entry<String, Long> entry : getCommandCounts().entrySet()) {
+            line(out, "commands_total", "type=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        for (Map.Entry<String, Double> entry : getCommandsPerSecond().entrySet()) {
+            line(out, "commands_per_second", "type=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        line(out, "messages_multicast_total", "", getMessagesMulticast());
+        line(out, "client_demotions_total", "", getDemotions());
+        line(out, "client_catch_ups_total", "", getCatchUps());
+        line(out, "lagging_clients", "", getLaggingClients());
+        line(out, "messages_evicted_total", "", getMessagesEvicted());
+        line(out, "evictions_per_second", "", getEvictionsPerSecond());
+        line(out, "compression_input_bytes_total", "", getCompressionInputBytes());
+        line(out, "compression_output_bytes_total", "", getCompressionOutputBytes());
+        line(out, "retained_messages", "", getRetainedMessages());
+        line(out, "retained_bytes", "", getRetainedBytes());
+        line(out, "topics", "", getTopics());
+        line(out, "connected_clients", "", getConnectedClients());
+        line(out, "replication_lag_records", "", getReplicationLag());
+        histogram(out, "command_ack_nanos", commandAck);
+        histogram(out, "fanout_nanos", fanOut);
+        histogram(out, "delivery_nanos", delivery);
+        histogram(out, "replay_messages", replaySizes);
+        for (Map.Entry<Long, Long> entry : getClientLagMessages().entrySet()) {
+            line(out, "client_lag_messages", "participant=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        for (Map.Entry<Long, Long> entry : getClientLagMillis().entrySet()) {
+            line(out, "client_lag_millis", "participant=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        for (Map.Entry<Long, Integer> entry : getClientQueueDepths().entrySet()) {
+            line(out, "client_queue_depth", "participant=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+        line(out, "log_lines_dropped_total", "", getLogLinesDropped());
+        return out.toString();
+    }
+
+    private static void histogram(StringBuilder out, String name, LatencyHistogram histogram) {
+        for (Map.Entry<String, Long> entry : histogram.snapshot().entrySet()) {
+            line(out, name, "stat=\"" + entry.getKey() + "\"", entry.getValue());
+        }
+    }
+
+    private static void line(StringBuilder out, String name, String labels, Number value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - startedAt) / 1000;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> entry : commands.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getCommandsPerSecond() {
+        return commandRates;
+    }
+
+    @Override
+    public long getMessagesMulticast() {
+        return multicast.sum();
+    }
+
+    @Override
+    public long getDemotions() {
+        return demoted.sum();
+    }
+
+    @Override
+    public long getCatchUps() {
+        return caughtUp.sum();
+    }
+
+    @Override
+    public int getLaggingClients() {
+        return coordinator.getLaggingClients();
+    }
+
+    @Override
+    public long getMessagesEvicted() {
+        return evicted.sum();
+    }
+
+    @Override
+    public double getEvictionsPerSecond() {
+        return evictionRate;
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        return compressedIn.sum();
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        return compressedOut.sum();
+    }
+
+    @Override
+    public int getRetainedMessages() {
+        return coordinator.getRetainedMessages();
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return coordinator.getRetainedBytes();
+    }
+
+    @Override
+    public int getTopics() {
+        return coordinator.getTopicCount();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return coordinator.getConnectedClients();
+    }
+
+    @Override
+    public long getReplicationLag() {
+        return coordinator.getReplicationLag();
+    }
+
+    @Override
+    public Map<String, Long> getCommandAckNanos() {
+        return commandAck.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getFanOutNanos() {
+        return fanOut.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getDeliveryNanos() {
+        return delivery.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getReplaySizes() {
+        return replaySizes.snapshot();
+    }
+
+    @Override
+    public Map<Long, Long> getClientLagMessages() {
+        return coordinator.getClientLag(false);
+    }
+
+    @Override
+    public Map<Long, Long> getClientLagMillis() {
+        return coordinator.getClientLag(true);
+    }
+
+    @Override
+    public Map<Long, Integer> getClientQueueDepths() {
+        return coordinator.getOutboundQueueDepths();
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return Log.dropped();
+    }
+}
@@ -0,0 +1,55 @@
+import java.util.Map;
+
+/*
+ * JMX view of the coordinator's metrics, registered as pp3:type=Coordinator. Latencies are in nanoseconds,
+ * histograms are maps of count, mean, p50, p90, p99, p99.9 and max. Client maps are keyed by participant ID.
+ */
+public interface CoordinatorMetricsMXBean {
+    long getUptimeSeconds();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Double> getCommandsPerSecond();
+
+    long getMessagesMulticast();
+
+    long getDemotions();
+
+    long getCatchUps();
+
+    int getLaggingClients();
+
+    long getMessagesEvicted();
+
+    double getEvictionsPerSecond();
+
+    long getCompressionInputBytes();
+
+    long getCompressionOutputBytes();
+
+    int getRetainedMessages();
+
+    long getRetainedBytes();
+
+    int getTopics();
+
+    int getConnectedClients();
+
+    long getReplicationLag();
+
+    Map<String, Long> getCommandAckNanos();
+
+    Map<String, Long> getFanOutNanos();
+
+    Map<String, Long> getDeliveryNanos();
+
+    Map<String, Long> getReplaySizes();
+
+    Map<Long, Long> getClientLagMessages();
+
+    Map<Long, Long> getClientLagMillis();
+
+    Map<Long, Integer> getClientQueueDepths();
+
+    long getLogLinesDropped();
+}
@@ -0,0 +1,241 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32C;
+
+/*  Durable log
+ *  Optional on-disk copy of the retention log so the coordinator keeps its T_d window across restarts.
+ *  Messages of every topic are appended to memory-mapped segment files named after the first sequence number
+ *  they hold. A segment starts with [int magic][int version], then each record is
+ *  [long seq][long timestamp][int topic length][int payload length][int crc][topic][payload], with a topic
+ *  length of -1 when topics are off and a CRC32C of everything in the record but the crc itself. A seq of 0
+ *  marks the end of the written part of a segment (sequence numbers start at 1 and the mapped file is zero
+ *  filled).
+ *
+ *  Recovery stops a segment at the first record that doesn't add up (a length past the end of the file or a
+ *  wrong crc, as left by a crash halfway through a write) and marks the end there. A segment left without
+ *  a single complete record is deleted. Segments without the header, or with another version, are not read
+ *  but renamed to <name>.old.
+ *
+ *  Writes only touch the mapped buffer. Pages are forced to disk every fsyncEveryMessages appends, which
+ *  happens in append and so holds up the multicast, and/or every fsyncIntervalMs by the coordinator's
+ *  background task, which forces outside the lock so appends carry on meanwhile. Retention never rewrites a
+ *  segment: once the newest record of a segment is older than the longest T_d of any topic the whole file is
+ *  deleted.
+ */
+class DurableLog {
+    private static final int MAGIC = 0x50503353; // "PP3S"
+    private static final int VERSION = 2;
+    private static final int SEGMENT_HEADER = 4 + 4;
+    private static final int RECORD_HEADER = 8 + 8 + 4 + 4 + 4;
+
+    // Receives each recovered message, oldest first
+    interface Recovery {
+        void restore(String topic, byte[] payload, long seq, long timestamp);
+    }
+
+    private static class Segment {
+        Path path;
+        FileChannel channel;
+        MappedByteBuffer buffer;
+        long lastTimestamp;
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int fsyncEveryMessages;
+    private final Deque<Segment> segments = new ArrayDeque<>(); // Oldest first, the last one is being written
+    private int unsyncedMessages = 0;
+
+    public DurableLog(File directory, int segmentBytes, int fsyncEveryMessages) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncEveryMessages = fsyncEveryMessages;
+        Files.createDirectories(directory.toPath());
+    }
+
+    /*
+     * Reads every segment left by a previous run into the retention log, oldest first.
+     * New messages always go into a fresh segment, the recovered ones are only kept until they expire.
+     */
+    public synchronized int recover(Recovery recovery) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (files == null) {
+            return 0;
+        }
+        Arrays.sort(files); // File names are zero padded sequence numbers
+
+        int recovered = 0;
+        for (File file : files) {
+            int records = 0;
+            Segment segment = new Segment();
+            segment.path = file.toPath();
+            segment.channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, segment.channel.size());
+
+            if (segment.buffer.remaining() < SEGMENT_HEADER || segment.buffer.getInt() != MAGIC
+                    || segment.buffer.getInt() != VERSION) {
+                // Moved out of the way, a new segment may get the same name
+                Log.warn("Setting aside log segment " + file + " as .old, it was written in an older format");
+                segment.channel.close();
+                Files.move(segment.path, Path.of(file.getPath() + ".old"), StandardCopyOption.REPLACE_EXISTING);
+                continue;
+            }
+            while (segment.buffer.remaining() >= RECORD_HEADER) {
+                int start = segment.buffer.position();
+                long seq = segment.buffer.getLong();
+                if (seq == 0) {
+                    break;
+                }
+                long timestamp = segment.buffer.getLong();
+                int topicLength = segment.buffer.getInt();
+                int payloadLength = segment.buffer.getInt();
+                int crc = segment.buffer.getInt();
+                if (topicLength < -1 || payloadLength < 0
+                        || (long) Math.max(topicLength, 0) + payloadLength > segment.buffer.remaining()
+                        || crc != checksum(segment.buffer, start, Math.max(topicLength, 0) + payloadLength)) {
+                    Log.warn("Log segment " + file + " ends in a damaged record at offset " + start + ", truncating it there");
+                    segment.buffer.putLong(start, 0);
+                    break;
+                }
+                String topic = null;
+                if (topicLength >= 0) {
+                    byte[] topicBytes = new byte[topicLength];
+                    segment.buffer.get(topicBytes);
+                    topic = new String(topicBytes, StandardCharsets.UTF_8);
+                }
+                byte[] payload = new byte[payloadLength];
+                segment.buffer.get(payload);
+
+                recovery.restore(topic, payload, seq, timestamp);
+                segment.lastTimestamp = timestamp;
+                records++;
+            }
+            segment.buffer.force();
+            segment.channel.close();
+            segment.channel = null;
+            segment.buffer = null;
+            if (records == 0) {
+                // Nothing to keep, and the next roll may want the same name
+                Log.warn("Deleting log segment " + file + ", it holds no complete records");
+                Files.delete(segment.path);
+                continue;
+            }
+            recovered += records;
+            segments.addLast(segment);
+        }
+        return recovered;
+    }
+
+    public synchronized void append(Coordinator.Message message) throws IOException {
+        byte[] payload = message.payload;
+        byte[] topic = message.topic == null ? new byte[0] : message.topic.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = RECORD_HEADER + topic.length + payload.length;
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.channel == null || segment.buffer.remaining() < recordBytes) {
+            segment = roll(message.seq, recordBytes);
+        }
+
+        int start = segment.buffer.position();
+        segment.buffer.putLong(message.seq);
+        segment.buffer.putLong(message.timestamp);
+        segment.buffer.putInt(message.topic == null ? -1 : topic.length);
+        segment.buffer.putInt(payload.length);
+        segment.buffer.putInt(0); // crc, filled in below
+        segment.buffer.put(topic);
+        segment.buffer.put(payload);
+        segment.buffer.putInt(start + RECORD_HEADER - 4, checksum(segment.buffer, start, topic.length + payload.length));
+        segment.lastTimestamp = message.timestamp;
+
+        if (fsyncEveryMessages > 0 && ++unsyncedMessages >= fsyncEveryMessages) {
+            sync();
+        }
+    }
+
+    // CRC32C of the record at start, whose topic and payload take bodyBytes, leaving out its crc field
+    private static int checksum(ByteBuffer buffer, int start, int bodyBytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(start + RECORD_HEADER - 4).position(start));
+        crc.update(buffer.duplicate().limit(start + RECORD_HEADER + bodyBytes).position(start + RECORD_HEADER));
+        return (int) crc.getValue();
+    }
+
+    /*
+     * Forces the segment currently being written to disk. Only picking the segment takes the lock, appends
+     * (and with them the multicast) carry on while its pages are written out.
+     */
+    public void sync() {
+        MappedByteBuffer buffer;
+        synchronized (this) {
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.channel == null || unsyncedMessages == 0) {
+                unsyncedMessages = 0;
+                return;
+            }
+            buffer = segment.buffer;
+            unsyncedMessages = 0;
+        }
+        buffer.force();
+    }
+
+    /*
+     * Deletes every segment whose newest message was stamped before cutoffMillis.
+     * The segment currently being written is never deleted.
+     */
+    public synchronized int deleteOlderThan(long cutoffMillis) {
+        int deleted = 0;
+        while (segments.size() > 1 && segments.peekFirst().lastTimestamp < cutoffMillis) {
+            Segment segment = segments.pollFirst();
+            try {
+                if (segment.channel != null) {
+                    segment.channel.close();
+                }
+                Files.deleteIfExists(segment.path);
+                deleted++;
+            } catch (IOException e) {
+                Log.error("Error deleting log segment: " + segment.path + " " + e.getMessage());
+            }
+        }
+        return deleted;
+    }
+
+    // Seals the current segment and maps a new one starting at firstSeq
+    private Segment roll(long firstSeq, int minimumBytes) throws IOException {
+        Path path = new File(directory, String.format("%020d.seg", firstSeq)).toPath();
+        for (Segment existing : segments) {
+            if (existing.path.equals(path)) {
+                // Truncating it would lose its messages and leave two entries for one file
+                throw new IOException("Log segment " + path + " already holds messages from " + firstSeq);
+            }
+        }
+
+        Segment current = segments.peekLast();
+        if (current != null && current.channel != null) {
+            current.buffer.force();
+            current.channel.close();
+            current.channel = null;
+            current.buffer = null;
+        }
+        unsyncedMessages = 0;
+
+        Segment segment = new Segment();
+        segment.path = path;
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segment.buffer = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(segmentBytes, SEGMENT_HEADER + minimumBytes + 8));
+        segment.buffer.putInt(MAGIC).putInt(VERSION);
+        segments.addLast(segment);
+        return segment;
+    }
+}
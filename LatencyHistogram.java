@@ -0,0 +1,106 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*  Latency histogram
+ *  Log-linear buckets in the style of HdrHistogram: values below 256 get a bucket each, and every power of
+ *  two above that is split into 128 equal buckets, so any recorded value is reported to within 1% no matter
+ *  how large it is. Recording is a bucket increment plus two LongAdders, so many threads can share one histogram.
+ *  Values are whatever unit the caller records in (nanoseconds everywhere in this project).
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int HALF_BUCKET = 1 << (SUB_BUCKET_BITS - 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 2) * HALF_BUCKET);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /*
+     * Smallest recorded value that percentile percent of the recorded values are at or below,
+     * reported as the top of its bucket. Returns 0 for an empty histogram.
+     */
+    public long percentile(double percent) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /*
+     * One line summary with values divided by scale, e.g. summary(1e6) for nanoseconds shown as milliseconds.
+     */
+    public String summary(double scale) {
+        return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p99.9=%.3f max=%.3f", count(), mean() / scale,
+                percentile(50) / scale, percentile(90) / scale, percentile(99) / scale, percentile(99.9) / scale,
+                max() / scale);
+    }
+
+    /*
+     * count, mean and the usual percentiles by name, for the coordinator's metrics endpoints.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        values.put("count", count());
+        values.put("mean", Math.round(mean()));
+        values.put("p50", percentile(50));
+        values.put("p90", percentile(90));
+        values.put("p99", percentile(99));
+        values.put("p99.9", percentile(99.9));
+        values.put("max", max());
+        return values;
+    }
+
+    // Values below 2^SUB_BUCKET_BITS map to themselves, larger ones keep their top SUB_BUCKET_BITS bits
+    private static int indexOf(long value) {
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift <= 0) {
+            return (int) value;
+        }
+        return shift * HALF_BUCKET + (int) (value >>> shift);
+    }
+
+    private static long highestValueIn(int index) {
+        if (index < 2 * HALF_BUCKET) {
+            return index;
+        }
+        int shift = index / HALF_BUCKET - 1;
+        long lowest = (long) (index - shift * HALF_BUCKET) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,354 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*  Load generator
+ *  Runs many simulated participants in one JVM against a running coordinator, without stdin. Each one is a
+ *  real Participant driven through execute(), so it uses the same sockets, handshake and protocol code as
+ *  the interactive client. The only difference is that delivered messages go to an in-memory sink
+ *  instead of a message file.
+ *
+ *  Config file: the first line is the coordinator's "ip port", followed by optional name=value lines:
+ *      participants=100      simulated participants, with IDs firstId, firstId + 1, ...
+ *      firstId=1000000
+ *      portBase=7000         participant i listens on portBase + i when the coordinator has no dataPort
+ *      durationSeconds=30
+ *      registerRate=100      commands per second across all participants, each one goes to a random
+ *      msendRate=200         participant in the right state (unregistered, connected, disconnected...)
+ *      disconnectRate=1
+ *      reconnectRate=1
+ *      deregisterRate=0
+ *      payloadBytes=64
+ *      workers=32            threads issuing commands, every participant runs one command at a time
+ *      drainSeconds=2        how long to wait for deliveries after the last command
+ *      topicCount=10         only with a coordinator running topics=true: participant i subscribes to topic
+ *                            "t" + (i % topicCount) after registering and sends its messages there
+ *      slowConsumers=0       the first slowConsumers participants sleep slowConsumerDelayMs on every delivery,
+ *      slowConsumerDelayMs=5 to see whether they hold up everyone else's deliveries
+ *  Any other option (protocol, publishWindow, sharedDataPort, compression) is passed on to every participant.
+ *
+ *  Every msend payload starts with the System.nanoTime() at send, so a delivery gives its end to end latency.
+ *  Besides a line per command type, the report has one for every command but msend together, the control
+ *  commands, whose p99 is what a participant waits for its register or reconnect under a heavy msendRate.
+ *  Messages sent while a participant was disconnected are counted as replayed rather than timed, and slow
+ *  consumers' deliveries are timed separately so they don't hide how the healthy participants did. With the
+ *  binary protocol and no topics, each participant also checks that the sequence numbers it receives have no
+ *  gaps, which shows whether reconnects replayed everything they missed. (With topics, sequence numbers are
+ *  shared by all topics, so a participant sees gaps wherever another topic got a message.)
+ */
+public class LoadGenerator {
+    private static final String[] COMMANDS = {"register", "msend", "disconnect", "reconnect", "deregister"};
+
+    private final Map<String, String> options = new HashMap<>();
+    private String coordinatorIp;
+    private int coordinatorPort;
+    private SimulatedParticipant[] participants;
+    private ExecutorService workers;
+    private String padding; // Fills msend payloads up to payloadBytes
+    private final long epoch = System.nanoTime(); // Timestamps in payloads are relative to this, so never negative
+
+    // Results, shared by every simulated participant
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    private final LatencyHistogram slowLatency = new LatencyHistogram(); // Deliveries to slow consumers
+    private final Map<String, LatencyHistogram> commandLatency = new LinkedHashMap<>();
+    private final LatencyHistogram controlLatency = new LatencyHistogram(); // Every command but msend
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder reconnectsChecked = new LongAdder();
+    private final LongAdder reconnectsComplete = new LongAdder();
+
+    public LoadGenerator(String configFile) throws FileNotFoundException {
+        try (Scanner scanner = new Scanner(new File(configFile))) {
+            String[] ipAndPort = scanner.nextLine().trim().split(" ");
+            coordinatorIp = ipAndPort[0];
+            coordinatorPort = Integer.parseInt(ipAndPort[1]);
+
+            while (scanner.hasNextLine()) {
+                String[] option = scanner.nextLine().trim().split("=", 2);
+                if (option.length == 2) {
+                    options.put(option[0], option[1]);
+                }
+            }
+        }
+        for (String command : COMMANDS) {
+            commandLatency.put(command, new LatencyHistogram());
+        }
+    }
+
+    private double option(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public void run() throws InterruptedException {
+        int count = (int) option("participants", 100);
+        long firstId = (long) option("firstId", 1000000);
+        int portBase = (int) option("portBase", 7000);
+        double[] rates = new double[COMMANDS.length];
+        for (int i = 0; i < COMMANDS.length; i++) {
+            rates[i] = option(COMMANDS[i] + "Rate", switch (COMMANDS[i]) {
+                case "register" -> 100;
+                case "msend" -> 200;
+                case "disconnect", "reconnect" -> 1;
+                default -> 0;
+            });
+        }
+        byte[] fill = new byte[Math.max(0, (int) option("payloadBytes", 64) - 20)];
+        Arrays.fill(fill, (byte) 'x');
+        padding = new String(fill, StandardCharsets.US_ASCII);
+
+        // Participants only read the options they know about, the load generator's own are ignored
+        participants = new SimulatedParticipant[count];
+        int slowConsumers = (int) option("slowConsumers", 0);
+        long slowDelay = (long) option("slowConsumerDelayMs", 5);
+        for (int i = 0; i < count; i++) {
+            participants[i] = new SimulatedParticipant(firstId + i, portBase + i, "t" + (i % (int) option("topicCount", 10)),
+                    i < slowConsumers ? slowDelay : 0);
+            if (!participants[i].connect(coordinatorIp, coordinatorPort)) {
+                return;
+            }
+        }
+        workers = Executors.newFixedThreadPool((int) option("workers", 32));
+        System.out.println("Connected " + count + " participants to " + coordinatorIp + ":" + coordinatorPort);
+
+        // Hand out commands at the configured rates until the time is up
+        long start = System.nanoTime();
+        long end = start + (long) (option("durationSeconds", 30) * 1e9);
+        double[] credit = new double[COMMANDS.length];
+        long last = start;
+        while (System.nanoTime() < end) {
+            Thread.sleep(1);
+            long now = System.nanoTime();
+            for (int i = 0; i < COMMANDS.length; i++) {
+                // Unused credit is capped at a second's worth so an idle command type can't burst later
+                credit[i] = Math.min(credit[i] + rates[i] * (now - last) / 1e9, Math.max(1, rates[i]));
+                while (credit[i] >= 1) {
+                    credit[i]--;
+                    if (!dispatch(COMMANDS[i])) {
+                        break;
+                    }
+                }
+            }
+            last = now;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Let in-flight commands and deliveries finish before reporting
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        Thread.sleep((long) (option("drainSeconds", 2) * 1000));
+        report(elapsed);
+
+        // Leave the coordinator without any of our participants registered
+        for (SimulatedParticipant participant : participants) {
+            if (participant.isRegistered) {
+                participant.execute("deregister");
+            }
+        }
+    }
+
+    /*
+     * Gives the command to a random idle participant that is in a state to run it.
+     * Returns false if none was found, e.g. reconnect while nobody is disconnected.
+     */
+    private boolean dispatch(String command) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int attempt = 0; attempt < 16; attempt++) {
+            SimulatedParticipant participant = participants[random.nextInt(participants.length)];
+            if (!participant.busy.compareAndSet(false, true)) {
+                continue;
+            }
+            if (!participant.canRun(command)) {
+                participant.busy.set(false);
+                continue;
+            }
+            workers.execute(() -> {
+                try {
+                    long started = System.nanoTime();
+                    participant.runCommand(command);
+                    long took = System.nanoTime() - started;
+                    commandLatency.get(command).record(took);
+                    if (!command.equals("msend")) {
+                        controlLatency.record(took);
+                    }
+                } finally {
+                    participant.busy.set(false);
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    private long now() {
+        return System.nanoTime() - epoch;
+    }
+
+    private void report(double elapsed) {
+        System.out.printf("Load generator report: %d participants, %.1f s%n", participants.length, elapsed);
+        System.out.printf("  msend sent:        %d (%.1f/s)%n", sent.sum(), sent.sum() / elapsed);
+        System.out.printf("  delivered:         %d (%.1f/s), %d live, %d replayed after reconnect%n", delivered.sum(),
+                delivered.sum() / elapsed, delivered.sum() - replayed.sum(), replayed.sum());
+        System.out.println("  delivery latency ms: " + deliveryLatency.summary(1e6));
+        if (slowLatency.count() > 0) {
+            System.out.println("  slow consumers ms:   " + slowLatency.summary(1e6));
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : commandLatency.entrySet()) {
+            if (entry.getValue().count() > 0) {
+                System.out.printf("  %-10s ms: %s%n", entry.getKey(), entry.getValue().summary(1e6));
+            }
+        }
+        if (controlLatency.count() > 0) {
+            System.out.printf("  %-10s ms: %s%n", "control", controlLatency.summary(1e6));
+        }
+        if (participants.length > 0 && participants[0].isBinary() && !participants[0].topics) {
+            System.out.printf("  replay:            %d of %d checked reconnects complete, %d messages missing, %d duplicates%n",
+                    reconnectsComplete.sum(), reconnectsChecked.sum(), missing.sum(), duplicates.sum());
+            System.out.println("  (messages older than the coordinator's T_d are expected to be missing)");
+        }
+    }
+
+    /*  Simulated participant
+     *  A Participant whose message handler records latency and sequence gaps instead of writing a file.
+     *  Commands are run by the worker pool, busy makes sure a participant never runs two at once.
+     */
+    private class SimulatedParticipant extends Participant {
+        final AtomicBoolean busy = new AtomicBoolean();
+        private final int port;
+        private final String topic; // Subscribed to and sent to when the coordinator runs with topics
+        private final long delayMillis; // Time spent on each delivery, 0 unless this is a slow consumer
+        private volatile long connectedAt; // now() when the current message socket was set up
+        private long lastSeq; // Last sequence number received, 0 right after register
+        private boolean checkNextDelivery; // The next delivery is the first after a reconnect
+
+        SimulatedParticipant(long id, int port, String topic, long delayMillis) {
+            this.port = port;
+            this.topic = topic;
+            this.delayMillis = delayMillis;
+            configure(id, null, options);
+        }
+
+        boolean isBinary() {
+            return binary;
+        }
+
+        boolean canRun(String command) {
+            return switch (command) {
+                case "register" -> !isRegistered;
+                case "msend", "disconnect" -> isRegistered && isConnected;
+                case "reconnect" -> isRegistered && !isConnected;
+                default -> isRegistered;
+            };
+        }
+
+        void runCommand(String command) {
+            switch (command) {
+                case "register", "reconnect" -> {
+                    connectedAt = now();
+                    execute(command + " " + port);
+                    if (topics && command.equals("register")) {
+                        execute("subscribe " + topic);
+                    }
+                }
+                case "msend" -> {
+                    execute("msend " + (topics ? topic + " " : "") + now() + " " + padding);
+                    sent.increment();
+                }
+                default -> execute(command);
+            }
+        }
+
+        @Override
+        MessageSink openMessageSink() {
+            // Register starts a fresh sequence, reconnect should carry on right after the last one received
+            if (!isRegistered) {
+                lastSeq = 0;
+            } else {
+                checkNextDelivery = true;
+            }
+            return new MessageSink() {
+                @Override
+                public void append(long seq, byte[] message, int offset, int length) {
+                    received(seq, message, offset, length);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        void deleteMessages() {
+        }
+
+        // Called on the message handler thread for every delivery
+        private void received(long seq, byte[] message, int offset, int length) {
+            long receivedAt = now();
+            delivered.increment();
+
+            // The send time is the first word of the message, after the topic if there is one
+            int start = offset;
+            while (topics && message[start++] != ' ') {
+            }
+            long sentAt = 0;
+            for (int i = start; i < offset + length && message[i] != ' '; i++) {
+                sentAt = sentAt * 10 + (message[i] - '0');
+            }
+            if (sentAt < connectedAt) {
+                replayed.increment();
+            } else {
+                (delayMillis > 0 ? slowLatency : deliveryLatency).record(receivedAt - sentAt);
+            }
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (seq == 0 || topics) {
+                return; // Text protocol or topics, no contiguous sequence numbers to check
+            }
+            if (checkNextDelivery) {
+                checkNextDelivery = false;
+                reconnectsChecked.increment();
+                if (seq == lastSeq + 1) {
+                    reconnectsComplete.increment();
+                }
+            }
+            if (lastSeq != 0 && seq > lastSeq + 1) {
+                missing.add(seq - lastSeq - 1);
+            } else if (lastSeq != 0 && seq <= lastSeq) {
+                duplicates.increment();
+                return;
+            }
+            lastSeq = seq;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("Usage: java LoadGenerator <load_config_file>");
+            return;
+        }
+        new LoadGenerator(args[0]).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*  Log
+ *  Leveled, asynchronous replacement for System.out.println on the coordinator's hot paths.
+ *  Callers only put the line on a bounded queue, a single daemon thread does the actual printing in batches,
+ *  so a slow terminal never holds up an event loop. If the queue is full the line is dropped (and counted)
+ *  rather than blocking. The level comes from the logLevel=debug|info|warn|error option, default info;
+ *  the per-command lines are debug, so they are off unless asked for.
+ */
+final class Log {
+    static final int DEBUG = 0, INFO = 1, WARN = 2, ERROR = 3;
+
+    private static volatile int level = INFO;
+    private static final BlockingQueue<String> pending = new ArrayBlockingQueue<>(8192);
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        Thread printer = new Thread(Log::print, "log-writer");
+        printer.setDaemon(true);
+        printer.start();
+        // Whatever is still queued when the coordinator exits is printed on the way out
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {}
+
+    public static void setLevel(String name) {
+        switch (name.toLowerCase()) {
+            case "debug" -> level = DEBUG;
+            case "warn" -> level = WARN;
+            case "error" -> level = ERROR;
+            default -> level = INFO;
+        }
+    }
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    public static void info(String message) {
+        log(INFO, message);
+    }
+
+    public static void warn(String message) {
+        log(WARN, message);
+    }
+
+    public static void error(String message) {
+        log(ERROR, message);
+    }
+
+    // Lines dropped because the queue was full
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    private static void log(int messageLevel, String message) {
+        if (messageLevel >= level && !pending.offer(message)) {
+            dropped.increment();
+        }
+    }
+
+    private static void print() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                for (String line : batch) {
+                    out.append(line).append(System.lineSeparator());
+                }
+                System.out.print(out);
+                System.out.flush();
+                batch.clear();
+                out.setLength(0);
+            }
+        } catch (InterruptedException e) {
+            // Only happens at exit
+        }
+    }
+
+    private static synchronized void flush() {
+        List<String> batch = new ArrayList<>();
+        pending.drainTo(batch);
+        for (String line : batch) {
+            System.out.println(line);
+        }
+        System.out.flush();
+    }
+}
@@ -0,0 +1,10 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/*  Message sink
+ *  Receives every message the MessageHandler reads, in delivery order. seq is the coordinator's sequence
+ *  number from the DELIVER frame, or 0 for the text protocol, which does not carry one.
+ */
+interface MessageSink extends Closeable {
+    void append(long seq, byte[] message, int offset, int length) throws IOException;
+}
@@ -1,32 +1,81 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 class Participant {
+    private static final byte LOST = -1; // Put on replies by the ack reader when the command socket closes
 
     private long ID;
     private String messageFile;
+    private String coordinatorIp;
     private Thread messageThread = null;
+    private MessageHandler messageHandler = null;
     Socket commandSocket;
     DataInputStream commandDataIn;
     DataOutputStream commandDataOut;
     boolean isRegistered, isConnected;
+    boolean binary; // Binary wire protocol (default) or the writeUTF text protocol
+    int dataPort; // Coordinator's shared data port, 0 when message sockets use the port given to register/reconnect
+    boolean topics; // The coordinator runs with topics: msend <topic> <message>, subscribe <topic>
+
+    // Pipelined publishing (binary protocol with publishWindow=N): msend returns as soon as the PUBLISH is written
+    private Semaphore publishWindow = null; // Permits for unacknowledged publishes, null when msend waits for OK
+    private long publishSeq = 0; // Sequence number of the last PUBLISH sent
+    private final ConcurrentNavigableMap<Long, byte[]> unacked = new ConcurrentSkipListMap<>(); // Kept for resends
+    private final BlockingQueue<Byte> replies = new LinkedBlockingQueue<>(); // OKs read by the ack reader thread
+    private final Map<String, String> options = new HashMap<>(); // Optional name=value lines after the first three
+
+    // Failover (failover=host:port): when the coordinator goes away, resume with its standby instead
+    private String failoverAddress; // Cleared once used, there is only one standby to go to
+    private volatile boolean connectionLost; // The ack reader saw the command socket close
+    private Thread ackReader; // Reads replies off the current command socket, null without pipelining
+    private int windowSize; // publishWindow, to start over with after a failover
+    private String messagePort = "0"; // Port given to the last register or reconnect
+
+    // Sequence number of the last message received (binary protocol only). Sent with every reconnect so the
+    // coordinator replays exactly what we don't have, and kept in <messageFile>.cursor across restarts.
+    private long cursor = 0;
 
     public void run(String configFile) {
 
         // Parse Config File
         String ipAndPortNumber;
         try (Scanner scanner = new Scanner( new File(configFile) )) {
-            ID = Long.parseLong(scanner.nextLine());
-            messageFile = scanner.nextLine();
+            long id = Long.parseLong(scanner.nextLine());
+            String file = scanner.nextLine();
             ipAndPortNumber = scanner.nextLine();
-            isRegistered = false;
-            isConnected = false;
+
+            Map<String, String> settings = new HashMap<>();
+            while (scanner.hasNextLine()) {
+                String[] option = scanner.nextLine().trim().split("=", 2);
+                if (option.length == 2) {
+                    settings.put(option[0], option[1]);
+                }
+            }
+            configure(id, file, settings);
         } catch (FileNotFoundException e) {
             System.out.println("Error reading participant configuration file: " + configFile);
             return;
@@ -34,159 +83,550 @@ class Participant {
         String[] ipAndPort = ipAndPortNumber.split(" ");
 
         // Connect to the Coordinator
-        try {
-            commandSocket = new Socket(ipAndPort[0], Integer.parseInt(ipAndPort[1]));  
-            commandDataIn = new DataInputStream( commandSocket.getInputStream() );
-            commandDataOut = new DataOutputStream( commandSocket.getOutputStream() );
-
-            commandDataOut.writeLong(ID);
-            commandDataOut.flush();
-
-        } catch (IOException e) {
-            System.out.println("Error creating socket for participant on IP: " + ipAndPort[0] + " and port: " + ipAndPort[1]);
+        if (!connect(ipAndPort[0], Integer.parseInt(ipAndPort[1]))) {
             return;
         }
 
-
         // Read user commands from std input
         try (Scanner scanner = new Scanner(System.in)) {
             String command = "";
             while (!command.equals("exit")) {
                 System.out.print("myParticipant> ");
                 command = scanner.nextLine();
-                
-                String[] parts = command.split(" ");
-
-                switch(parts[0]) {
-                    case ("register") -> {
-                        if (!isRegistered) {    
-                            handleRegister(command, ipAndPort[0]);
-                            commandDataIn.readUTF();
-                            isConnected = true;
-                        } else {
-                            System.out.println("Participant is already registered.");
-                        }
+                execute(command);
+            }
+
+        } catch (Exception e) {
+            System.out.println("Error reading from System.in" + e.toString());
+        }
+
+    }
+
+    /*
+     * Sets the participant's ID, message file and optional settings. Split out of run() so the
+     * LoadGenerator can set up simulated participants without a config file.
+     */
+    void configure(long id, String file, Map<String, String> settings) {
+        ID = id;
+        messageFile = file;
+        isRegistered = false;
+        isConnected = false;
+        options.putAll(settings);
+
+        binary = !options.getOrDefault("protocol", "binary").equals("text");
+        int window = Integer.parseInt(options.getOrDefault("publishWindow", "0"));
+        if (binary && window > 0) {
+            publishWindow = new Semaphore(window);
+            windowSize = window;
+        }
+        failoverAddress = options.get("failover");
+
+        // A cursor left by an earlier run means we were registered and never deregistered: carry on from it
+        // as a disconnected participant, a reconnect picks up right after the last message in the file
+        if (binary && messageFile != null) {
+            cursor = MessageLogWriter.readCursor(cursorFile());
+            if (cursor > 0) {
+                isRegistered = true;
+                System.out.println("Resuming after message " + cursor + ", reconnect to catch up.");
+            }
+        }
+    }
+
+    /*
+     * Opens the command socket and runs the handshake. Returns false if the coordinator can't be reached.
+     */
+    boolean connect(String ip, int port) {
+        coordinatorIp = ip;
+        try {
+            commandSocket = new Socket(ip, port);
+            commandDataIn = new DataInputStream( new BufferedInputStream(commandSocket.getInputStream()) );
+            commandDataOut = new DataOutputStream( new BufferedOutputStream(commandSocket.getOutputStream()) );
+
+            // Ask for the binary protocol before sending the ID, the coordinator confirms with a single byte.
+            // With compression=deflate we also offer to take compressed deliveries, and once we have published
+            // we say our publish sequence numbers carry on, so the coordinator only acks what it already has.
+            boolean offerDeflate = binary && options.getOrDefault("compression", "none").equals("deflate");
+            long flags = (offerDeflate ? WireProtocol.FLAG_DEFLATE : 0) | (publishSeq > 0 ? WireProtocol.FLAG_RESUME : 0);
+            if (binary) {
+                commandDataOut.writeLong(flags != 0 ? WireProtocol.BINARY_HELLO_FLAGS : WireProtocol.BINARY_HELLO);
+            }
+            commandDataOut.writeLong(ID);
+            if (binary && flags != 0) {
+                WireProtocol.writeVarLong(commandDataOut, flags);
+            }
+            commandDataOut.flush();
+            if (binary && commandDataIn.readByte() != 1) {
+                reportError("Coordinator refused the binary protocol");
+                return false;
+            }
+            if (binary) {
+                dataPort = (int) WireProtocol.readVarLong(commandDataIn);
+                if (options.getOrDefault("sharedDataPort", "true").equals("false")) {
+                    dataPort = 0;
+                }
+                topics = (WireProtocol.readVarLong(commandDataIn) & WireProtocol.FLAG_TOPICS) != 0;
+            }
+
+            // With pipelining, replies arrive interleaved with ACKs, so one thread reads them all
+            if (publishWindow != null) {
+                ackReader = new Thread(this::readReplies, "ack-reader");
+                ackReader.setDaemon(true);
+                ackReader.start();
+            }
+
+        } catch (IOException e) {
+            reportError("Error creating socket for participant on IP: " + ip + " and port: " + port);
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Runs one user command: register, deregister, disconnect, reconnect, msend, subscribe or unsubscribe.
+     */
+    void execute(String command) {
+        if (connectionLost && failoverAddress != null) {
+            failover();
+        }
+        try {
+            String[] parts = command.split(" ");
+
+            switch(parts[0]) {
+                case ("register") -> {
+                    if (!isRegistered) {    
+                        messagePort = parts.length > 1 ? parts[1] : "0";
+                        handleRegister(command, coordinatorIp);
+                        readAck();
+                        isConnected = true;
+                    } else {
+                        System.out.println("Participant is already registered.");
                     }
-                    case ("deregister") -> {
-                        if (isRegistered) {
-                            handleDeregister(command, false);
-                            commandDataIn.readUTF();
-                            isConnected = false;
-                        } else {
-                            System.out.println("Need to be registered to deregister");
-                        }
+                }
+                case ("deregister") -> {
+                    if (isRegistered) {
+                        handleDeregister(command, false);
+                        readAck();
+                        isConnected = false;
+                    } else {
+                        System.out.println("Need to be registered to deregister");
                     }
-                    case ("disconnect") -> {
-                        if (isRegistered && isConnected) {
-                            handleDeregister(command, true);
-                            commandDataIn.readUTF();  
-                            isConnected = false;
-                        } else {
-                            if (!isRegistered) System.out.println("Need to be registered to disconnect");
-                            else if (!isConnected) System.out.println("Need to be conncetd to disconnect");
-                        }
+                }
+                case ("disconnect") -> {
+                    if (isRegistered && isConnected) {
+                        handleDeregister(command, true);
+                        readAck();  
+                        isConnected = false;
+                    } else {
+                        if (!isRegistered) System.out.println("Need to be registered to disconnect");
+                        else if (!isConnected) System.out.println("Need to be conncetd to disconnect");
                     }
-                    case ("reconnect") -> {
-                        if (isRegistered && !isConnected) {
-                            handleReconnect(command, ipAndPort[0]);
-                            commandDataIn.readUTF();
-                            isConnected = true;
-                        } else {
-                            if (!isRegistered) System.out.println("Need to registered before reconnecteding");
-                            else if (isConnected) System.out.println("Participant is already connected.");
-                        }
+                }
+                case ("reconnect") -> {
+                    if (isRegistered && !isConnected) {
+                        messagePort = parts.length > 1 ? parts[1] : "0";
+                        handleReconnect(reconnectCommand(), coordinatorIp);
+                        readAck();
+                        isConnected = true;
+                    } else {
+                        if (!isRegistered) System.out.println("Need to registered before reconnecteding");
+                        else if (isConnected) System.out.println("Participant is already connected.");
                     }
-                    case ("msend") -> {
-                        if (isRegistered && isConnected) {
-                            handleMulticastSend(command);
-                            commandDataIn.readUTF();
-                        } else {
-                            if (!isRegistered) System.out.println("Must be registered before sending a message.");
-                            else if (!isConnected) System.out.println("Must be connected before sending a message.");
+                }
+                case ("msend") -> {
+                    if (isRegistered && isConnected) {
+                        handleMulticastSend(command);
+                        if (publishWindow == null) {
+                            readAck();
                         }
+                    } else {
+                        if (!isRegistered) System.out.println("Must be registered before sending a message.");
+                        else if (!isConnected) System.out.println("Must be connected before sending a message.");
+                    }
+                }
+                case ("subscribe"), ("unsubscribe") -> {
+                    if (isRegistered && parts.length > 1) {
+                        sendCommand(command);
+                        readAck();
+                    } else {
+                        if (!isRegistered) System.out.println("Must be registered to " + parts[0] + ".");
+                        else System.out.println("Usage: " + parts[0] + " <topic>");
                     }
-                    default -> System.out.println("ERROR: Invalid command");
                 }
+                default -> System.out.println("ERROR: Invalid command");
             }
+        } catch (IOException e) {
+            reportError("Error waiting for the coordinator " + e.toString());
+            // The command may not have gone through, so it is tried again on the standby
+            if (failoverAddress != null && failover()) {
+                execute(command);
+            }
+        }
+    }
 
-        } catch (Exception e) {
-            System.out.println("Error reading from System.in" + e.toString());
+    // Reports a problem talking to the coordinator, on standard output unless a subclass logs it elsewhere
+    void reportError(String message) {
+        System.out.println(message);
+    }
+
+    // reconnect with our message port and, if we have one, the cursor to resume after
+    private String reconnectCommand() {
+        return "reconnect " + messagePort + (cursor > 0 ? " " + cursor : "");
+    }
+
+    /*
+     * Moves over to the standby coordinator after losing this one. The standby already knows this participant
+     * from replication, so a registered participant resumes instead of registering again (see reopen).
+     * Returns false if the standby hasn't let us in within failoverTimeoutMs (default 10 seconds), which it
+     * only does once it has noticed the primary is gone.
+     */
+    private boolean failover() {
+        String[] hostAndPort = failoverAddress.split(":");
+        failoverAddress = null;
+        reportError("Lost the coordinator, failing over to " + hostAndPort[0] + ":" + hostAndPort[1]);
+        long deadline = System.currentTimeMillis() + Long.parseLong(options.getOrDefault("failoverTimeoutMs", "10000"));
+        return reopen(hostAndPort[0], Integer.parseInt(hostAndPort[1]), deadline);
+    }
+
+    /*
+     * Drops the connection to the coordinator and opens a new one to ip:port, trying every half second until
+     * deadline. If we were connected we reconnect with our cursor, like any reconnect, so the replay starts
+     * right after the last message we received, and every unacked publish is sent again. Returns false if
+     * the coordinator hasn't let us in by the deadline.
+     */
+    boolean reopen(String ip, int port, long deadline) {
+        boolean wasConnected = isConnected;
+        try {
+            stopMessageHandler();
+            commandSocket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        // The old ack reader reports the closed socket as a lost connection, so let it finish before starting over
+        if (ackReader != null) {
+            try {
+                ackReader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            ackReader = null;
+        }
+        connectionLost = false;
+        replies.clear();
+        if (publishWindow != null) {
+            publishWindow = new Semaphore(windowSize - unacked.size());
+        }
+
+        while (true) {
+            if (connect(ip, port)) {
+                if (!isRegistered || !wasConnected) {
+                    return true;
+                }
+                isConnected = false;
+                try {
+                    handleReconnect(reconnectCommand(), coordinatorIp);
+                    readAck();
+                    isConnected = true;
+                    return true;
+                } catch (IOException e) {
+                    // The text protocol has no handshake reply, so a coordinator that turned us away shows up here
+                    reportError("Error resuming with the coordinator " + e.toString());
+                    try {
+                        commandSocket.close();
+                    } catch (IOException closeError) {
+                        // Already gone
+                    }
+                }
+            }
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /*
+     * Sends a command to the coordinator in the negotiated protocol.
+     * Text commands other than msend get the participant ID appended, binary frames carry it as a varint.
+     */
+    private void sendCommand(String command) throws IOException {
+        String[] parts = command.split(" ", 2);
+        if (!binary) {
+            commandDataOut.writeUTF(parts[0].equals("msend") ? command : command + " " + ID);
+            commandDataOut.flush();
+            return;
         }
 
+        switch (parts[0]) {
+            case ("register"), ("reconnect") -> {
+                // Port 0 asks the coordinator to expect us on its shared data port. A reconnect may add the
+                // sequence number to resume after (see reconnectCommand)
+                String[] args = parts[1].trim().split(" ");
+                int port = dataPort != 0 ? 0 : Integer.parseInt(args[0]);
+                long cursor = args.length > 1 ? Long.parseLong(args[1]) : 0;
+                int length = 1 + WireProtocol.varLongSize(port) + WireProtocol.varLongSize(ID);
+                WireProtocol.writeVarLong(commandDataOut, cursor > 0 ? length + WireProtocol.varLongSize(cursor) : length);
+                commandDataOut.writeByte(parts[0].equals("register") ? WireProtocol.REGISTER : WireProtocol.RECONNECT);
+                WireProtocol.writeVarLong(commandDataOut, port);
+                WireProtocol.writeVarLong(commandDataOut, ID);
+                if (cursor > 0) {
+                    WireProtocol.writeVarLong(commandDataOut, cursor);
+                }
+            }
+            case ("deregister"), ("disconnect") -> {
+                WireProtocol.writeVarLong(commandDataOut, 1 + WireProtocol.varLongSize(ID));
+                commandDataOut.writeByte(parts[0].equals("deregister") ? WireProtocol.DEREGISTER : WireProtocol.DISCONNECT);
+                WireProtocol.writeVarLong(commandDataOut, ID);
+            }
+            case ("msend") -> {
+                byte[] body = messageBody(parts.length > 1 ? parts[1] : "");
+                WireProtocol.writeVarLong(commandDataOut, 1 + body.length);
+                commandDataOut.writeByte(WireProtocol.MSEND);
+                commandDataOut.write(body);
+            }
+            case ("subscribe"), ("unsubscribe") -> {
+                byte[] topic = parts[1].trim().getBytes(StandardCharsets.UTF_8);
+                WireProtocol.writeVarLong(commandDataOut, 1 + WireProtocol.varLongSize(ID) + topic.length);
+                commandDataOut.writeByte(parts[0].equals("subscribe") ? WireProtocol.SUBSCRIBE : WireProtocol.UNSUBSCRIBE);
+                WireProtocol.writeVarLong(commandDataOut, ID);
+                commandDataOut.write(topic);
+            }
+            default -> throw new IOException("Unknown command " + parts[0]);
+        }
+        commandDataOut.flush();
+    }
+
+    /*
+     * Encodes the text after "msend " as the body of a MSEND or PUBLISH frame. With topics the first word is
+     * the topic and goes in front as a varint length and its bytes, the rest is the payload.
+     */
+    private byte[] messageBody(String text) {
+        if (!topics) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+        String[] topicAndMessage = text.split(" ", 2);
+        return messageBody(topicAndMessage[0], (topicAndMessage.length > 1 ? topicAndMessage[1] : "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Same for a payload that is already bytes, topic is ignored without topics
+    private byte[] messageBody(String topicName, byte[] payload) {
+        if (!topics) {
+            return payload;
+        }
+        byte[] topic = (topicName == null ? "" : topicName).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(WireProtocol.varLongSize(topic.length) + topic.length + payload.length);
+        WireProtocol.putVarLong(body, topic.length);
+        return body.put(topic).put(payload).array();
+    }
+
+    /*
+     * msend of a payload that is already bytes, sent as it is (needs publishWindow). The publish is kept for a
+     * resend before anything is written, so if this throws it goes out again with the next reopen.
+     */
+    void publish(String topic, byte[] payload) throws IOException {
+        byte[] body = messageBody(topic, payload);
+        publishWindow.acquireUninterruptibly();
+        unacked.put(++publishSeq, body);
+        if (connectionLost) {
+            throw new IOException("Lost connection to the coordinator");
+        }
+        sendPublish(publishSeq, body);
+    }
+
+    // Sends one pipelined PUBLISH frame without waiting for a reply
+    private void sendPublish(long seq, byte[] body) throws IOException {
+        WireProtocol.writeVarLong(commandDataOut, 1 + WireProtocol.varLongSize(seq) + body.length);
+        commandDataOut.writeByte(WireProtocol.PUBLISH);
+        WireProtocol.writeVarLong(commandDataOut, seq);
+        commandDataOut.write(body);
+        commandDataOut.flush();
+    }
+
+    // Waits for an OK from the coordinator
+    private void readAck() throws IOException {
+        if (publishWindow != null) {
+            try {
+                if (replies.take() == LOST) {
+                    throw new IOException("Lost connection to the coordinator");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted waiting for the coordinator");
+            }
+        } else if (binary) {
+            commandDataIn.skipNBytes(WireProtocol.readVarLong(commandDataIn));
+        } else {
+            commandDataIn.readUTF();
+        }
+    }
+
+    /*
+     * Ack reader thread for pipelined mode. A cumulative ACK retires every publish up to its sequence
+     * and frees that many window permits, any other frame is an OK for the command being waited on.
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                long length = WireProtocol.readVarLong(commandDataIn);
+                byte opcode = commandDataIn.readByte();
+                if (opcode == WireProtocol.ACK) {
+                    ConcurrentNavigableMap<Long, byte[]> acked = unacked.headMap(WireProtocol.readVarLong(commandDataIn), true);
+                    int count = acked.size();
+                    acked.clear();
+                    publishWindow.release(count);
+                } else {
+                    commandDataIn.skipNBytes(length - 1);
+                    replies.add(opcode);
+                }
+            }
+        } catch (IOException e) {
+            reportError("Lost connection to the coordinator " + e.toString());
+            // Let a msend waiting for the window through, the next command fails over
+            connectionLost = true;
+            publishWindow.release(windowSize);
+            replies.add(LOST);
+        }
+    }
+
+    /*
+     * Resends every publish the coordinator has not acked yet, in order. The coordinator skips any it
+     * has already multicast, so this never duplicates a message.
+     */
+    private void resendUnacked() throws IOException {
+        for (Map.Entry<Long, byte[]> entry : unacked.entrySet()) {
+            sendPublish(entry.getKey(), entry.getValue());
+        }
     }
 
     private void handleMulticastSend(String command) {
         try {
-            commandDataOut.writeUTF(command);
-            commandDataOut.flush();
+            if (publishWindow != null) {
+                String[] parts = command.split(" ", 2);
+                byte[] body = messageBody(parts.length > 1 ? parts[1] : "");
+                publishWindow.acquire();
+                unacked.put(++publishSeq, body);
+                sendPublish(publishSeq, body);
+            } else {
+                sendCommand(command);
+            }
+        } catch (InterruptedException e) {
+            reportError("Interrupted waiting for the publish window");
         } catch (IOException e) {   
-            System.out.println("Error sending msend " + e.toString());
+            reportError("Error sending msend " + e.toString());
         }
     }
 
     private void handleReconnect(String command, String ip) {
         try {
             // Send reconnect command to coordinator
-            commandDataOut.writeUTF(command + " " + ID);
-            commandDataOut.flush();
+            sendCommand(command);
 
             // Await acknowledgment from coordinator
-            commandDataIn.readUTF();
+            readAck();
 
             // Restart the message listener thread
-            messageThread = new Thread(new MessageHandler(command, ip, messageFile));
-            messageThread.start();
+            startMessageHandler(command, ip);
+
+            // Anything published but not acked before the disconnect is sent again
+            resendUnacked();
         } catch (IOException e) {
-            System.out.println("Error reconnecting participant: " + e.toString());
+            reportError("Error reconnecting participant: " + e.toString());
         }
     }
 
     private void handleRegister(String command, String ip) {
         try {
-            // Create messageFile
-            File file = new File(messageFile);
-            file.createNewFile();
-
             // Send command to coordinator
-            commandDataOut.writeUTF(command + " " + String.valueOf(ID));
-            commandDataOut.flush();
+            sendCommand(command);
 
             // Await acknowledgement from coordinator
-            commandDataIn.readUTF();
+            readAck();
 
-            // Start a new thread to handle messages
-            messageThread = new Thread ( new MessageHandler(command, ip, messageFile));
-            messageThread.start();
+            // Start a new thread to handle messages, this creates the messageFile
+            startMessageHandler(command, ip);
             isRegistered = true;
 
         } catch (IOException e) {
-            System.out.println("Error registering participant with coordinator: " + e.toString());
+            reportError("Error registering participant with coordinator: " + e.toString());
         }
     }
 
     private void handleDeregister(String command, boolean registered) {
         try {
             // Send command to coordinator
-            commandDataOut.writeUTF(command + " " + String.valueOf(ID));
-            commandDataOut.flush();
+            sendCommand(command);
 
-            // Delete the messageHandler thread
-            messageThread.interrupt();
-            messageThread = null;
+            // Await acknowledgement from coordinator, it has closed the message socket by now
+            readAck();
 
-            // On deregister, remove old messsages
+            // Stop the messageHandler thread once it has written out everything it received
+            stopMessageHandler();
+
+            // On deregister, remove old messsages, and with them the cursor
             if (!registered) {
-                // Delete messages 
-                File file = new File(messageFile);
-                file.delete();
+                deleteMessages();
+                cursor = 0;
             }
-
-            // Await acknowledgement from coordinator
-            commandDataIn.readUTF();
             isRegistered = registered;
         } catch (IOException e) {
-            System.out.println("Error " + command + " participant with coordinator: " + e.toString());
+            reportError("Error " + command + " participant with coordinator: " + e.toString());
+        }
+    }
+
+    private void startMessageHandler(String command, String ip) throws IOException {
+        Socket messageSocket;
+        if (dataPort != 0) {
+            // One shared port for every participant, so say who this message socket belongs to
+            messageSocket = new Socket(ip, dataPort);
+            DataOutputStream out = new DataOutputStream(messageSocket.getOutputStream());
+            out.writeLong(ID);
+            out.flush();
+        } else {
+            messageSocket = new Socket(ip, Integer.parseInt(command.split(" ")[1]));
+        }
+        messageHandler = new MessageHandler(messageSocket, openMessageSink(), binary, topics, cursor);
+        messageThread = new Thread(messageHandler);
+        messageThread.start();
+    }
+
+    // Where delivered messages go, the LoadGenerator overrides these to keep them in memory
+    MessageSink openMessageSink() throws IOException {
+        return new MessageLogWriter(new File(messageFile), options.getOrDefault("logDurability", "messages:1"),
+                binary ? cursorFile() : null);
+    }
+
+    void deleteMessages() {
+        new File(messageFile).delete();
+        cursorFile().delete();
+    }
+
+    private File cursorFile() {
+        return new File(messageFile + ".cursor");
+    }
+
+    private void stopMessageHandler() throws IOException {
+        // Deregistering while disconnected, there is no handler running
+        if (messageThread == null) {
+            return;
         }
+        messageThread.interrupt();
+        try {
+            // The handler exits on end of stream; if the coordinator never closes the socket, close it ourselves
+            messageThread.join(1000);
+            if (messageThread.isAlive()) {
+                messageHandler.close();
+                messageThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        cursor = messageHandler.lastSeq(); // May go down, if the coordinator started its numbering over
+        messageThread = null;
+        messageHandler = null;
     }
 
     public static void main(String[] args) {
@@ -196,32 +636,217 @@ class Participant {
 
 }
 
-class MessageHandler implements Runnable {
+class MessageHandler implements Runnable, Closeable {
     private Socket messageSocket;
     private DataInputStream messageDataIn;
-    private String messageLogsFile;
-
-    public MessageHandler(String command, String ip, String messageLogsFile) throws IOException{
-        String[] parts = command.split(" ");
-        this.messageLogsFile = messageLogsFile;
-        this.messageSocket = new Socket(ip, Integer.parseInt(parts[1]));
-        this.messageDataIn = new DataInputStream(this.messageSocket.getInputStream());
+    private MessageSink sink;
+    private boolean binary;
+    private boolean topics; // DELIVER frames carry a topic, which is logged in front of the message
+    private byte[] payload = new byte[4096]; // Reused for every binary DELIVER frame, grown as needed
+    private long seq; // Sequence number of the last DELIVER frame read
+    private final long resumeAfter; // Cursor sent with the reconnect, our position until a message arrives
+    private final Inflater inflater = new Inflater(); // For COMPRESSED frames, with compression=deflate
+
+    public MessageHandler(Socket messageSocket, MessageSink sink, boolean binary, boolean topics, long resumeAfter) throws IOException{
+        this.sink = sink;
+        this.resumeAfter = resumeAfter;
+        this.binary = binary;
+        this.topics = topics;
+        this.messageSocket = messageSocket;
+        this.messageDataIn = new DataInputStream(new BufferedInputStream(this.messageSocket.getInputStream()));
     }
 
     @Override
     public void run() {
-        File file = new File(messageLogsFile); // Create file object
+        // Listen for new messages and write to file until the coordinator closes the socket or we are stopped
+        try (MessageSink file_out = sink) {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (binary) {
+                    readFrame(messageDataIn, file_out);
+                } else {
+                    byte[] message = messageDataIn.readUTF().getBytes(StandardCharsets.UTF_8);
+                    file_out.append(0, message, 0, message.length);
+                }
+            }
+        } catch (IOException e) {
+            // End of stream, the message socket was closed by deregister/disconnect
+        } catch (DataFormatException e) {
+            System.out.println("Error inflating a compressed delivery " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        messageSocket.close();
+    }
+
+    // Sequence number of the last DELIVER frame read, the reconnect's cursor before the first one, 0 with text
+    long lastSeq() {
+        return seq != 0 ? seq : resumeAfter;
+    }
+
+    /*
+     * Reads one frame from in and appends the messages in it to the sink: a DELIVER frame is one message,
+     * a BATCH frame a count followed by that many frames, and a COMPRESSED frame a frame to inflate first.
+     * Nothing is filtered against the cursor: the coordinator replays from it, and only sends something at or
+     * below it when its own numbering started over (see Coordinator.reconnectClient), which then is our cursor.
+     */
+    private void readFrame(DataInputStream in, MessageSink sink) throws IOException, DataFormatException {
+        int length = (int) WireProtocol.readVarLong(in) - 1;
+        byte opcode = in.readByte();
+        if (opcode == WireProtocol.BATCH) {
+            for (long count = WireProtocol.readVarLong(in); count > 0; count--) {
+                readFrame(in, sink);
+            }
+        } else if (opcode == WireProtocol.COMPRESSED) {
+            int inflatedLength = (int) WireProtocol.readVarLong(in);
+            byte[] compressed = new byte[length - WireProtocol.varLongSize(inflatedLength)];
+            in.readFully(compressed);
+            byte[] inflated = new byte[inflatedLength];
+            inflater.reset();
+            inflater.setInput(compressed);
+            if (inflater.inflate(inflated) != inflatedLength) {
+                throw new DataFormatException("Compressed frame is shorter than its length");
+            }
+            readFrame(new DataInputStream(new ByteArrayInputStream(inflated)), sink);
+        } else {
+            length = readDeliverBody(in, length);
+            sink.append(seq, payload, 0, length);
+        }
+    }
+
+    // Reads the rest of a DELIVER frame, length bytes, into the payload buffer as "[topic ]message" and returns its length
+    private int readDeliverBody(DataInputStream in, int length) throws IOException {
+        seq = WireProtocol.readVarLong(in);
+        length -= WireProtocol.varLongSize(seq);
+
+        int offset = 0;
+        if (topics) {
+            // The topic and its varint length become the topic and a space
+            int topicLength = (int) WireProtocol.readVarLong(in);
+            length += 1 - WireProtocol.varLongSize(topicLength);
+            ensureCapacity(length);
+            in.readFully(payload, 0, topicLength);
+            payload[topicLength] = ' ';
+            offset = topicLength + 1;
+        }
+        ensureCapacity(length);
+        in.readFully(payload, offset, length - offset);
+        return length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length > payload.length) {
+            payload = Arrays.copyOf(payload, Math.max(length, payload.length * 2));
+        }
+    }
 
-        // Listen for new messages and write to file
-        while (true) { 
-            try (FileWriter file_out = new FileWriter(file, true)) {
-                String message = messageDataIn.readUTF();
+}
+/*  Message log writer
+ *  Keeps the message file open for the lifetime of a MessageHandler and buffers appends.
+ *  The durability policy decides when buffered messages reach the file:
+ *      messages:N   flush after every N messages (messages:1 is the default)
+ *      interval:MS  flush at most MS milliseconds after a message arrives
+ *      fsync        flush and fsync after every message
+ *  Closing the writer flushes and fsyncs whatever is still buffered.
+ *
+ *  With a cursor file, every flush then overwrites it with the sequence number of the last message flushed,
+ *  as 8 bytes. It is only written once the messages are in the file (and with fsync, on disk), so it never
+ *  gets ahead of the file.
+ */
+class MessageLogWriter implements MessageSink {
+    private final FileOutputStream file;
+    private final BufferedOutputStream out;
+    private final boolean fsync;
+    private final int flushEvery;
+    private Thread flusher;
+    private int unflushed = 0;
+    private final FileChannel cursor; // null without a cursor file
+    private long lastSeq, savedSeq; // Last message appended, and the last one written to the cursor file
+
+    public MessageLogWriter(File logFile, String durability, File cursorFile) throws IOException {
+        this.file = new FileOutputStream(logFile, true);
+        this.out = new BufferedOutputStream(file, 64 * 1024);
+        this.cursor = cursorFile == null ? null
+                : FileChannel.open(cursorFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        String[] policy = durability.split(":", 2);
+        this.fsync = policy[0].equals("fsync");
+        this.flushEvery = policy[0].equals("messages") ? Integer.parseInt(policy[1]) : 1;
+
+        if (policy[0].equals("interval")) {
+            long interval = Long.parseLong(policy[1]);
+            flusher = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        flush();
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // Writer closed
+                }
+            }, "message-log-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
 
-                file_out.write(message + "\n");
+    // Sequence number in a cursor file, 0 if there is none
+    static long readCursor(File cursorFile) {
+        try (FileChannel channel = FileChannel.open(cursorFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer value = ByteBuffer.allocate(8);
+            return channel.read(value, 0) == 8 ? value.getLong(0) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
 
-            } catch (IOException e) {
+    @Override
+    public synchronized void append(long seq, byte[] message, int offset, int length) throws IOException {
+        out.write(message, offset, length);
+        out.write('\n');
+        unflushed++;
+        lastSeq = seq;
+
+        if (fsync || (flusher == null && unflushed >= flushEvery)) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (unflushed > 0) {
+            out.flush();
+            if (fsync) {
+                file.getChannel().force(false);
+            }
+            unflushed = 0;
+            saveCursor();
+        }
+    }
+
+    private void saveCursor() throws IOException {
+        if (cursor != null && lastSeq != savedSeq) {
+            cursor.write(ByteBuffer.allocate(8).putLong(0, lastSeq), 0);
+            if (fsync) {
+                cursor.force(false);
             }
+            savedSeq = lastSeq;
         }
     }
 
-}
\ No newline at end of file
+    @Override
+    public synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        flush();
+        file.getChannel().force(false);
+        out.close();
+        if (cursor != null) {
+            cursor.force(false);
+            cursor.close();
+        }
+    }
+}
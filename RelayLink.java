@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*  Relay link
+ *  With upstream=host:port in its config, a coordinator runs as a relay: it joins the parent coordinator as an
+ *  ordinary binary participant and re-multicasts everything the parent delivers to it to its own participants,
+ *  keeping them in its own retention log for its own T_d. Local msends are not multicast locally, they are
+ *  forwarded to the parent and come back down like everyone else's, so the parent alone decides the order and
+ *  every participant in the tree sees the same one. Relays can hang off relays.
+ *
+ *  Every command to the parent goes through one thread, in the order the relay issued them. Topics are
+ *  subscribed upstream the first time a local participant subscribes to them and stay subscribed.
+ *
+ *  When the parent's message stream ends the link reconnects to it on that thread, retrying until the parent
+ *  is back, and catches up from its cursor. Msends forwarded in the meantime wait behind the reconnect, and
+ *  any the parent had not acked are published again, so a lost parent delays them instead of losing them.
+ */
+class RelayLink extends Participant {
+    private final Coordinator coordinator;
+    private final ExecutorService upstream = Executors.newSingleThreadExecutor(r -> new Thread(r, "relay-upstream"));
+    private final Set<String> followed = ConcurrentHashMap.newKeySet(); // Topics subscribed to on the parent
+    private final String upstreamHost;
+    private final int upstreamPort;
+    private volatile boolean lost; // The connection to the parent broke and nobody has reconnected yet
+    private volatile boolean reconnecting; // Our own reopen stops the message stream, which is not a loss
+
+    /*
+     * Sets up the link to upstream (host:port) as participant relayId. upstreamPublishWindow is how many
+     * forwarded msends may be waiting for the parent's ack at once (at least 1, so they can be resent), and
+     * compression is offered to the parent as a participant would.
+     */
+    RelayLink(Coordinator coordinator, String upstream, long relayId, int publishWindow, String compression) {
+        this.coordinator = coordinator;
+        String[] hostAndPort = upstream.split(":");
+        upstreamHost = hostAndPort[0];
+        upstreamPort = Integer.parseInt(hostAndPort[1]);
+        Map<String, String> settings = new HashMap<>();
+        settings.put("protocol", "binary");
+        settings.put("publishWindow", String.valueOf(Math.max(1, publishWindow)));
+        settings.put("compression", compression);
+        configure(relayId, null, settings);
+    }
+
+    // Opens the command connection to the parent
+    boolean connect() {
+        return connect(upstreamHost, upstreamPort);
+    }
+
+    /*
+     * Registers with the parent, after which its messages start arriving. The message socket goes to the
+     * parent's shared data port if it has one, otherwise to messagePort on the parent.
+     */
+    boolean register(int messagePort) {
+        if (dataPort == 0 && messagePort == 0) {
+            Log.error("Upstream coordinator has no dataPort, set upstreamMessagePort");
+            return false;
+        }
+        execute("register " + messagePort);
+        return isRegistered;
+    }
+
+    // Sends a local msend to the parent, the payload bytes as they are
+    void forward(String topic, byte[] payload) {
+        upstream.execute(() -> {
+            try {
+                publish(topic, payload);
+            } catch (IOException e) {
+                // Kept as unacked, the reconnect publishes it again
+                Log.warn("Error forwarding to the upstream coordinator " + e.getMessage());
+                lost = true;
+                reconnect();
+            }
+        });
+    }
+
+    /*
+     * Runs on the upstream thread. Reopens the connection to the parent, resuming after the last message we
+     * got, and subscribes to our topics again in case the parent restarted and forgot them.
+     */
+    private void reconnect() {
+        if (!lost) {
+            return; // Someone else saw the same loss first
+        }
+        lost = false;
+        reconnecting = true;
+        try {
+            while (!reopen(upstreamHost, upstreamPort, System.currentTimeMillis() + 10000)) {
+                Log.warn("Upstream coordinator " + upstreamHost + ":" + upstreamPort + " is still unreachable");
+            }
+        } finally {
+            reconnecting = false;
+        }
+        for (String topic : followed) {
+            execute("subscribe " + topic);
+        }
+        Log.info("Reconnected to the upstream coordinator " + upstreamHost + ":" + upstreamPort);
+    }
+
+    // Makes sure the parent sends us the topic
+    void follow(String topic) {
+        if (followed.add(topic)) {
+            upstream.execute(() -> execute("subscribe " + topic));
+        }
+    }
+
+    // Called on the message handler thread, in the parent's order
+    @Override
+    MessageSink openMessageSink() {
+        return new MessageSink() {
+            @Override
+            public void append(long seq, byte[] message, int offset, int length) {
+                // With topics the handler hands over "topic message"
+                int start = offset;
+                String topic = null;
+                if (topics) {
+                    while (start < offset + length && message[start] != ' ') {
+                        start++;
+                    }
+                    topic = new String(message, offset, start - offset, StandardCharsets.UTF_8);
+                    start = Math.min(start + 1, offset + length);
+                }
+                byte[] payload = new byte[offset + length - start];
+                System.arraycopy(message, start, payload, 0, payload.length);
+                coordinator.multicastMessage(topic, payload);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!reconnecting) {
+                    Log.error("Lost the message stream from the upstream coordinator, reconnecting");
+                    lost = true;
+                    upstream.execute(RelayLink.this::reconnect);
+                }
+            }
+        };
+    }
+
+    // Problems with the parent go to the coordinator's log, not to standard output
+    @Override
+    void reportError(String message) {
+        Log.error(message);
+    }
+
+    @Override
+    void deleteMessages() {
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/*  Replication
+ *  Hot standby for the coordinator. The primary (replicationPort=N) streams every change to its state to one
+ *  standby coordinator (standbyOf=host:N): messages as they are multicast, registers, deregisters and
+ *  subscriptions, and each participant's delivery cursor a few times a second. A standby that connects gets a
+ *  snapshot of everything the primary holds first, taken under the fan-out lock, and the live stream after it.
+ *
+ *  Whoever makes a change only adds a record to a buffer. A sender thread writes the buffer out whenever it is
+ *  not empty, so everything that piled up during the previous write goes as one batch and replication never
+ *  puts a socket write on the fan-out path. A batch is [varint length][varint position][records], position
+ *  counting the records since the snapshot, and the standby answers each batch with the position it has
+ *  applied. With replicationAck=sync the primary holds back every OK and ACK until the standby has applied
+ *  everything up to it, so an acknowledged command survives a failover. With none (the default) it never
+ *  waits, and whatever was still in flight when the primary died is lost.
+ *
+ *  The stream ending doesn't mean the primary is gone: it also drops a standby that falls too far behind or
+ *  stops acking. So the standby keeps dialing, and a primary that answers sends a fresh snapshot, which
+ *  replaces everything the standby had. Only once the primary has refused connections for promoteAfterMs
+ *  (default 2000) does the standby take over.
+ *
+ *  Record bodies, after a one byte type:
+ *      MESSAGE      varint seq, varint timestamp, varint topic length + 1 (0 = no topic), topic, varint length, payload
+ *      REGISTER     varint participant ID, varint cursor
+ *      DEREGISTER   varint participant ID
+ *      SUBSCRIBE    varint participant ID, varint length, topic
+ *      UNSUBSCRIBE  varint participant ID, varint length, topic
+ *      CURSOR       varint participant ID, varint cursor
+ *      PUBLISHED    varint participant ID, varint publish sequence number of its last multicast PUBLISH
+ *  A multicast PUBLISH adds its MESSAGE and PUBLISHED records together, so they always reach the standby in
+ *  the same batch: after a failover it knows exactly which resent PUBLISH frames it already has.
+ */
+class Replicator {
+    static final byte MESSAGE = 1;
+    static final byte REGISTER = 2;
+    static final byte DEREGISTER = 3;
+    static final byte SUBSCRIBE = 4;
+    static final byte UNSUBSCRIBE = 5;
+    static final byte CURSOR = 6;
+    static final byte PUBLISHED = 7;
+
+    // What a standby does with the records it reads
+    interface Standby {
+        // Forget everything from the previous stream, a new snapshot follows
+        void reset();
+
+        void restore(String topic, byte[] payload, long seq, long timestamp);
+
+        void session(byte type, long participantId, long cursor, String topic);
+    }
+
+    private final boolean sync;
+    private final long timeoutMillis; // How long sync waits for the standby before giving up on it
+    private final long maxPendingBytes; // Unsent records allowed to pile up before the standby is dropped
+
+    // Guarded by this
+    private Socket standby; // null while no standby is attached
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream records = new DataOutputStream(pending);
+    private long position; // Records added since the current standby's snapshot
+    private long acked; // Highest position the standby has applied
+    private boolean snapshotting; // The snapshot is exempt from maxPendingBytes
+
+    Replicator(boolean sync, long timeoutMillis, long maxPendingBytes) {
+        this.sync = sync;
+        this.timeoutMillis = timeoutMillis;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /*
+     * Accepts standbys on port. Each one replaces the previous one and is handed to onStandby, which is
+     * expected to call attach() and add the snapshot records.
+     */
+    void listen(int port, Consumer<Socket> onStandby) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    Log.info("Standby connected from " + socket.getRemoteSocketAddress());
+                    onStandby.accept(socket);
+                } catch (IOException e) {
+                    Log.error("Error accepting standby on port: " + port + " " + e.getMessage());
+                }
+            }
+        }, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /*
+     * Makes socket the standby and starts streaming to it. Records added from now until snapshotTaken() are
+     * the snapshot.
+     */
+    synchronized void attach(Socket socket) throws IOException {
+        detach(standby, "replaced by a new standby");
+        standby = socket;
+        pending.reset();
+        position = 0;
+        acked = 0;
+        snapshotting = true;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread sender = new Thread(() -> send(socket, out), "replication-sender");
+        Thread ackReader = new Thread(() -> readAcks(socket, in), "replication-acks");
+        sender.setDaemon(true);
+        ackReader.setDaemon(true);
+        sender.start();
+        ackReader.start();
+    }
+
+    synchronized void snapshotTaken() {
+        snapshotting = false;
+        Log.info("Sent a snapshot of " + position + " records to the standby");
+    }
+
+    synchronized void message(Coordinator.Message message) {
+        if (standby == null) {
+            return;
+        }
+        writeMessage(message);
+        added();
+    }
+
+    // A message multicast for a pipelined PUBLISH, followed by the publisher's new publish sequence number
+    synchronized void published(Coordinator.Message message, long participantId, long publishSeq) {
+        if (standby == null) {
+            return;
+        }
+        writeMessage(message);
+        added();
+        session(PUBLISHED, participantId, publishSeq, null);
+    }
+
+    private void writeMessage(Coordinator.Message message) {
+        try {
+            records.writeByte(MESSAGE);
+            WireProtocol.writeVarLong(records, message.seq);
+            WireProtocol.writeVarLong(records, message.timestamp);
+            byte[] topic = message.topic == null ? null : message.topic.getBytes(StandardCharsets.UTF_8);
+            WireProtocol.writeVarLong(records, topic == null ? 0 : topic.length + 1);
+            if (topic != null) {
+                records.write(topic);
+            }
+            WireProtocol.writeVarLong(records, message.payload.length);
+            records.write(message.payload);
+        } catch (IOException e) {
+            // Writes to a ByteArrayOutputStream don't fail
+        }
+    }
+
+    // REGISTER, CURSOR and PUBLISHED use cursor, SUBSCRIBE and UNSUBSCRIBE use topic
+    synchronized void session(byte type, long participantId, long cursor, String topic) {
+        if (standby == null) {
+            return;
+        }
+        try {
+            records.writeByte(type);
+            WireProtocol.writeVarLong(records, participantId);
+            if (type == REGISTER || type == CURSOR || type == PUBLISHED) {
+                WireProtocol.writeVarLong(records, cursor);
+            } else if (type == SUBSCRIBE || type == UNSUBSCRIBE) {
+                byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+                WireProtocol.writeVarLong(records, name.length);
+                records.write(name);
+            }
+        } catch (IOException e) {
+            // Writes to a ByteArrayOutputStream don't fail
+        }
+        added();
+    }
+
+    /*
+     * With replicationAck=sync, waits until the standby has applied every record added so far.
+     * A standby that takes longer than replicationTimeoutMs is dropped rather than holding up every command.
+     */
+    synchronized void awaitReplicated() {
+        if (!sync || standby == null) {
+            return;
+        }
+        long target = position;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (standby != null && acked < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    detach(standby, "no ack for " + timeoutMillis + " ms");
+                    return;
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Records the standby has not applied yet, -1 without a standby
+    synchronized long lag() {
+        return standby == null ? -1 : position - acked;
+    }
+
+    private void added() {
+        position++;
+        if (!snapshotting && pending.size() > maxPendingBytes) {
+            detach(standby, "more than " + maxPendingBytes + " bytes behind");
+            return;
+        }
+        notifyAll();
+    }
+
+    private void send(Socket socket, DataOutputStream out) {
+        try {
+            while (true) {
+                byte[] batch;
+                long upTo;
+                synchronized (this) {
+                    while (standby == socket && pending.size() == 0) {
+                        wait();
+                    }
+                    if (standby != socket) {
+                        return;
+                    }
+                    batch = pending.toByteArray();
+                    pending.reset();
+                    upTo = position;
+                }
+                WireProtocol.writeVarLong(out, WireProtocol.varLongSize(upTo) + batch.length);
+                WireProtocol.writeVarLong(out, upTo);
+                out.write(batch);
+                out.flush();
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                detach(socket, e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readAcks(Socket socket, DataInputStream in) {
+        try {
+            while (true) {
+                long applied = WireProtocol.readVarLong(in);
+                synchronized (this) {
+                    if (standby != socket) {
+                        return;
+                    }
+                    acked = Math.max(acked, applied);
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                detach(socket, "connection closed");
+            }
+        }
+    }
+
+    // Caller holds the lock
+    private void detach(Socket socket, String reason) {
+        if (socket == null || socket != standby) {
+            return;
+        }
+        Log.warn("Dropping standby " + socket.getRemoteSocketAddress() + ": " + reason);
+        standby = null;
+        pending.reset();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+        notifyAll();
+    }
+
+    /*
+     * Standby side: connects to the primary's replication port, retrying until it is up, and applies the
+     * stream to target. When the stream ends it dials again and follows the new snapshot; it returns once the
+     * primary has been unreachable for promoteAfterMillis, which is when the standby takes over.
+     */
+    static void follow(String host, int port, Standby target, long promoteAfterMillis) throws InterruptedException {
+        long lostAt = 0; // When the last stream ended, 0 until the first one
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), 1000);
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Never connected
+                }
+                if (lostAt != 0 && System.currentTimeMillis() - lostAt >= promoteAfterMillis) {
+                    Log.warn("The primary " + host + ":" + port + " has been unreachable for " + promoteAfterMillis + " ms");
+                    return;
+                }
+                Thread.sleep(lostAt == 0 ? 500 : 100);
+                continue;
+            }
+            Log.info("Following primary " + host + ":" + port);
+            target.reset();
+            stream(socket, host + ":" + port, target);
+            lostAt = System.currentTimeMillis();
+        }
+    }
+
+    // Applies one connection's stream to target until it ends
+    private static void stream(Socket socket, String primaryAddress, Standby target) {
+        try (Socket primary = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(primary.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(primary.getOutputStream()));
+            while (true) {
+                byte[] batch = new byte[(int) WireProtocol.readVarLong(in)];
+                in.readFully(batch);
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                long upTo = WireProtocol.getVarLong(buffer);
+                while (buffer.hasRemaining()) {
+                    apply(buffer, target);
+                }
+                WireProtocol.writeVarLong(out, upTo);
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.warn("Lost the primary " + primaryAddress + ", " + e);
+        }
+    }
+
+    private static void apply(ByteBuffer buffer, Standby target) {
+        byte type = buffer.get();
+        if (type == MESSAGE) {
+            long seq = WireProtocol.getVarLong(buffer);
+            long timestamp = WireProtocol.getVarLong(buffer);
+            int topicLength = (int) WireProtocol.getVarLong(buffer);
+            String topic = topicLength == 0 ? null : string(buffer, topicLength - 1);
+            byte[] payload = new byte[(int) WireProtocol.getVarLong(buffer)];
+            buffer.get(payload);
+            target.restore(topic, payload, seq, timestamp);
+            return;
+        }
+
+        long participantId = WireProtocol.getVarLong(buffer);
+        long cursor = 0;
+        String topic = null;
+        if (type == REGISTER || type == CURSOR || type == PUBLISHED) {
+            cursor = WireProtocol.getVarLong(buffer);
+        } else if (type == SUBSCRIBE || type == UNSUBSCRIBE) {
+            topic = string(buffer, (int) WireProtocol.getVarLong(buffer));
+        }
+        target.session(type, participantId, cursor, topic);
+    }
+
+    private static String string(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
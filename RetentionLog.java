@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*  Retention log
+ *  Holds every message multicast to one topic in the last T_d seconds, in the order they were sent.
+ *  Sequence numbers are handed out by the coordinator across all topics, so they only ever increase inside
+ *  a log but have gaps wherever another topic got a message. Clients only need to remember the sequence
+ *  number of the last message they were sent to be caught up later, whichever topics they follow.
+ *
+ *  The messages live in a growable ring buffer. Sequence numbers and timestamps both only go up inside the
+ *  buffer, so replay and eviction find where to start with a binary search on either one.
+ */
+class RetentionLog {
+    private Coordinator.Message[] ring = new Coordinator.Message[16];
+    private int start = 0; // Index of the oldest retained message
+    private int size = 0;
+    private long lastTimestamp = 0;
+    private long bytes = 0; // Total payload size of the retained messages
+    private final boolean directBuffers; // Encode message frames into off-heap buffers
+
+    public RetentionLog(boolean directBuffers) {
+        this.directBuffers = directBuffers;
+    }
+
+    /*
+     * Appends a message with the given sequence number, stamped with the current time.
+     * seq has to be greater than that of every message already appended.
+     */
+    public synchronized Coordinator.Message append(String topic, byte[] payload, long seq) {
+        // Keep the buffer sorted by time even if the wall clock steps backwards
+        lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+        Coordinator.Message message = new Coordinator.Message(topic, payload, seq, lastTimestamp, directBuffers);
+        add(message);
+        return message;
+    }
+
+    /*
+     * Re-adds a message recovered from the durable log, keeping its original sequence number and timestamp.
+     */
+    public synchronized void restore(String topic, byte[] payload, long seq, long timestamp) {
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        add(new Coordinator.Message(topic, payload, seq, lastTimestamp, directBuffers));
+    }
+
+    /*
+     * Returns the oldest limit retained messages with a sequence number greater than afterSeq, oldest first.
+     */
+    public synchronized List<Coordinator.Message> replayFrom(long afterSeq, int limit) {
+        int from = indexAfter(afterSeq);
+        int to = (int) Math.min(size, (long) from + limit);
+        List<Coordinator.Message> messages = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            messages.add(at(i));
+        }
+        return messages;
+    }
+
+    /*
+     * Oldest retained message with a sequence number greater than afterSeq, or null if there is none.
+     */
+    public synchronized Coordinator.Message firstAfter(long afterSeq) {
+        int index = indexAfter(afterSeq);
+        return index < size ? at(index) : null;
+    }
+
+    // Number of retained messages with a sequence number greater than afterSeq
+    public synchronized int countAfter(long afterSeq) {
+        return size - indexAfter(afterSeq);
+    }
+
+    /*
+     * Drops every message stamped before cutoffMillis and returns how many were dropped.
+     */
+    public synchronized int evictOlderThan(long cutoffMillis) {
+        // Binary search for the first message that is still inside the retention window
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (at(mid).timestamp < cutoffMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int i = 0; i < low; i++) {
+            bytes -= at(i).payload.length;
+            ring[(start + i) % ring.length] = null;
+        }
+        start = (start + low) % ring.length;
+        size -= low;
+        return low;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    private void add(Coordinator.Message message) {
+        if (size == ring.length) {
+            grow();
+        }
+        ring[(start + size) % ring.length] = message;
+        size++;
+        bytes += message.payload.length;
+    }
+
+    private Coordinator.Message at(int index) {
+        return ring[(start + index) % ring.length];
+    }
+
+    // Position of the first message with a sequence number greater than afterSeq, size if there is none
+    private int indexAfter(long afterSeq) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (at(mid).seq <= afterSeq) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void grow() {
+        Coordinator.Message[] bigger = new Coordinator.Message[ring.length * 2];
+        for (int i = 0; i < size; i++) {
+            bigger[i] = at(i);
+        }
+        ring = bigger;
+        start = 0;
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*  Binary wire protocol
+ *  Shared by the Coordinator and Participant. A participant that wants the binary protocol sends BINARY_HELLO
+ *  followed by its ID instead of just its ID, and the coordinator answers with a single byte (1 = accepted),
+ *  a varint with its shared data port (0 if it has none) and a varint of feature flags (FLAG_TOPICS).
+ *  Participants that send their ID straight away keep using the writeUTF text protocol. A participant that
+ *  can take compressed deliveries sends BINARY_HELLO_FLAGS instead of BINARY_HELLO, with a varint of the
+ *  flags it accepts (FLAG_DEFLATE) after its ID, and the coordinator's flags say whether it will use them.
+ *  FLAG_RESUME says the connection replaces an earlier one from the same running participant, whose PUBLISH
+ *  sequence numbers carry on from where they were instead of starting over at 1.
+ *
+ *  With a shared data port, REGISTER and RECONNECT carry port 0 and the participant opens its message socket
+ *  to the data port, sending its ID as a long before anything else.
+ *
+ *  Every binary frame is [varint length][opcode][body], where length counts the opcode and the body.
+ *  Command bodies:
+ *      REGISTER    varint port, varint participant ID
+ *      DEREGISTER  varint participant ID
+ *      DISCONNECT  varint participant ID
+ *      RECONNECT   varint port, varint participant ID, optional varint sequence number to resume after
+ *      MSEND       [topic] raw payload bytes (the rest of the frame)
+ *      PUBLISH     varint publish sequence, [topic] raw payload bytes
+ *      SUBSCRIBE   varint participant ID, topic name bytes (the rest of the frame)
+ *      UNSUBSCRIBE varint participant ID, topic name bytes
+ *      OK          empty
+ *      ACK         varint publish sequence
+ *  PUBLISH is the pipelined form of MSEND: it is not answered with OK, instead the coordinator sends one
+ *  cumulative ACK for the highest publish sequence seen after each batch of frames it reads. A PUBLISH whose
+ *  sequence is not above the highest one already seen from that participant is a resend and is only acked.
+ *  On the message socket the coordinator sends DELIVER frames: varint sequence number, [topic] raw payload bytes.
+ *  Messages that go out together (a batchWindowMicros batch, or a replay) come wrapped in one BATCH frame:
+ *  varint count, followed by count complete DELIVER frames, all of them covered by the BATCH frame's length.
+ *  With FLAG_DEFLATE negotiated, a large DELIVER or BATCH frame may instead come as a COMPRESSED frame:
+ *  varint inflated length, followed by the original frame compressed with java.util.zip.Deflater.
+ *
+ *  [topic] is only there when the coordinator runs with topics (FLAG_TOPICS): a varint length followed by the
+ *  UTF-8 topic name. Without topics every message goes to every registered participant and SUBSCRIBE and
+ *  UNSUBSCRIBE are acked but do nothing.
+ *
+ *  Varints are unsigned LEB128 (7 bits per byte, low bits first), so negative IDs take 10 bytes.
+ */
+final class WireProtocol {
+    static final long BINARY_HELLO = 0x5050335F42494E01L; // "PP3_BIN" + version 1
+    static final long BINARY_HELLO_FLAGS = 0x5050335F42494E02L; // Version 2, the ID is followed by flags
+
+    static final byte REGISTER = 1;
+    static final byte DEREGISTER = 2;
+    static final byte DISCONNECT = 3;
+    static final byte RECONNECT = 4;
+    static final byte MSEND = 5;
+    static final byte PUBLISH = 6;
+    static final byte SUBSCRIBE = 7;
+    static final byte UNSUBSCRIBE = 8;
+    static final byte OK = 16;
+    static final byte ACK = 17;
+    static final byte DELIVER = 32;
+    static final byte BATCH = 33;
+    static final byte COMPRESSED = 34;
+
+    static final int FLAG_TOPICS = 1; // Handshake flag: MSEND, PUBLISH and DELIVER carry a topic
+    static final int FLAG_DEFLATE = 2; // Handshake flag: large deliveries may come as COMPRESSED frames
+    static final int FLAG_RESUME = 4; // Handshake flag: publish sequence numbers continue from the last connection
+
+    private WireProtocol() {}
+
+    // Command name of an opcode, as used in the text protocol
+    public static String name(byte opcode) {
+        return switch (opcode) {
+            case REGISTER -> "register";
+            case DEREGISTER -> "deregister";
+            case DISCONNECT -> "disconnect";
+            case RECONNECT -> "reconnect";
+            case MSEND -> "msend";
+            case PUBLISH -> "publish";
+            case SUBSCRIBE -> "subscribe";
+            case UNSUBSCRIBE -> "unsubscribe";
+            default -> "opcode " + opcode;
+        };
+    }
+
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /*
+     * Reads a varint from the buffer, or returns -1 without a usable position if the buffer ends first.
+     * Callers that may see partial frames should reset the position themselves on -1.
+     */
+    public static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && buffer.hasRemaining(); shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    public static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
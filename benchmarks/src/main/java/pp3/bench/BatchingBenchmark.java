@@ -0,0 +1,86 @@
+package pp3.bench;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Bursty multicast with and without a batch window. Every invocation pipelines a burst of publishes and waits
+ * until every subscriber has read all of them, so the score is the time to deliver one burst everywhere.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BatchingBenchmark {
+
+    @Param({"100"})
+    public int clients;
+
+    @Param({"0", "50"})
+    public String batchWindowMicros;
+
+    @Param({"64"})
+    public int burst;
+
+    @Param({"128"})
+    public int payloadBytes;
+
+    private BenchClient publisher;
+    private final List<BenchClient> subscribers = new ArrayList<>();
+    private DeliveryDrain drain;
+    private byte[] payload;
+    private long publishSeq;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        LoopbackCluster cluster = LoopbackCluster.start(60, "batchWindowMicros=" + batchWindowMicros);
+        payload = new byte[payloadBytes];
+
+        List<SocketChannel> channels = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            BenchClient subscriber = new BenchClient(cluster, 1_000_000 + i);
+            subscriber.register();
+            subscribers.add(subscriber);
+            channels.add(subscriber.data());
+        }
+        drain = new DeliveryDrain(channels);
+        publisher = new BenchClient(cluster, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        drain.close();
+        publisher.close();
+        for (BenchClient subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    @Benchmark
+    public void burstDelivered() throws IOException {
+        long target = drain.delivered() + (long) burst * clients;
+        for (int i = 0; i < burst; i++) {
+            publisher.publish(++publishSeq, payload);
+        }
+        publisher.awaitAck(publishSeq);
+        drain.awaitDelivered(target);
+    }
+}
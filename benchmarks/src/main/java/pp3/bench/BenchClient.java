@@ -0,0 +1,190 @@
+package pp3.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Minimal binary protocol participant for the benchmarks. It speaks the same frames as Participant
+ * (see WireProtocol in the default package, which can't be imported here) and always uses the shared data port.
+ */
+final class BenchClient implements Closeable {
+    static final long BINARY_HELLO = 0x5050335F42494E01L;
+    static final byte REGISTER = 1;
+    static final byte RECONNECT = 4;
+    static final byte MSEND = 5;
+    static final byte PUBLISH = 6;
+    static final byte ACK = 17;
+    static final byte BATCH = 33;
+
+    private final LoopbackCluster cluster;
+    private final long id;
+    private final Socket command;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private SocketChannel data;
+
+    BenchClient(LoopbackCluster cluster, long id) throws IOException {
+        this.cluster = cluster;
+        this.id = id;
+        this.command = new Socket("localhost", cluster.port);
+        this.command.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(command.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(command.getOutputStream()));
+
+        out.writeLong(BINARY_HELLO);
+        out.writeLong(id);
+        out.flush();
+        if (in.readByte() != 1) {
+            throw new IOException("Coordinator refused the binary protocol");
+        }
+        readVarLong(in); // Shared data port, we already know it
+        readVarLong(in); // Feature flags, the benchmarks run without topics
+    }
+
+    // Registers and opens the message channel, delivery starts after the newest retained message
+    void register() throws IOException {
+        attach(REGISTER);
+    }
+
+    // Reconnects and opens the message channel, everything after this client's cursor is replayed
+    void reconnect() throws IOException {
+        attach(RECONNECT);
+    }
+
+    private void attach(byte opcode) throws IOException {
+        writeVarLong(out, 1 + 1 + varLongSize(id));
+        out.writeByte(opcode);
+        writeVarLong(out, 0); // Port 0: shared data port
+        writeVarLong(out, id);
+        out.flush();
+        readReply();
+
+        data = SocketChannel.open(new InetSocketAddress("localhost", cluster.dataPort));
+        data.write(ByteBuffer.allocate(8).putLong(0, id));
+        readReply();
+    }
+
+    // Synchronous msend, returns once the coordinator acknowledged it
+    void msend(byte[] payload) throws IOException {
+        writeVarLong(out, 1 + payload.length);
+        out.writeByte(MSEND);
+        out.write(payload);
+        out.flush();
+        readReply();
+    }
+
+    // Pipelined publish, nothing is flushed or read
+    void publish(long seq, byte[] payload) throws IOException {
+        writeVarLong(out, 1 + varLongSize(seq) + payload.length);
+        out.writeByte(PUBLISH);
+        writeVarLong(out, seq);
+        out.write(payload);
+    }
+
+    // Flushes pending publishes and waits until the coordinator acked seq
+    void awaitAck(long seq) throws IOException {
+        out.flush();
+        long acked = 0;
+        while (acked < seq) {
+            long length = readVarLong(in);
+            if (in.readByte() == ACK) {
+                acked = readVarLong(in);
+            } else {
+                in.skipNBytes(length - 1);
+            }
+        }
+    }
+
+    SocketChannel data() {
+        return data;
+    }
+
+    private void readReply() throws IOException {
+        in.skipNBytes(readVarLong(in));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (data != null) {
+            data.close();
+        }
+        command.close();
+    }
+
+    /*
+     * Counts the complete message frames at the front of buffer (in read mode) and leaves the position
+     * at the first incomplete one. Only the header of a BATCH frame is skipped, the messages in it are
+     * counted one by one as they arrive, so a batch doesn't have to fit in the buffer.
+     */
+    static int countFrames(ByteBuffer buffer) {
+        int frames = 0;
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            long length = getVarLong(buffer);
+            if (length > 0 && buffer.hasRemaining() && buffer.get(buffer.position()) == BATCH) {
+                buffer.get();
+                if (getVarLong(buffer) < 0) {
+                    buffer.position(start);
+                    break;
+                }
+                continue;
+            }
+            if (length < 0 || buffer.remaining() < length) {
+                buffer.position(start);
+                break;
+            }
+            buffer.position(buffer.position() + (int) length);
+            frames++;
+        }
+        return frames;
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64 && buffer.hasRemaining(); shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,186 @@
+package pp3.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost per msend of the coordinator's own command path: Coordinator.processInbound on a client whose inbound
+ * buffer holds one read's worth of FRAMES commands, the way the event loop calls it after a socket read.
+ *   text     writeUTF "msend <message>" frames, each answered with its own OK
+ *   msend    binary MSEND frames, each answered with its own OK
+ *   publish  binary PUBLISH frames, one cumulative ACK for the whole read
+ * Each command is decoded, dispatched and multicast to a coordinator with no participants, so the numbers include
+ * the append to the retention log but no fan-out. Replies go to a loopback socket drained by a background thread.
+ * The coordinator is never run(), so the retention log is emptied after every invocation in place of the evictor.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandParseBenchmark {
+    private static final int FRAMES = 64;
+
+    @Param({"16", "1024"})
+    public int payloadBytes;
+
+    private Object coordinator;
+    private Object textClient, binaryClient;
+    private ByteBuffer textFrames, msendFrames, publishFrames;
+    private ByteBuffer inbound; // Stands in for the client's buffer after a read
+    private MethodHandle processInbound, setInbound, setLastPublishSeq, evictOlderThan;
+    private Object retention;
+    private ServerSocketChannel server;
+    private final List<SocketChannel> channels = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws Throwable {
+        // The coordinator lives in the default package and its Client class is private, so reach them reflectively
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Path config = Files.createTempFile("coordinator", ".txt");
+        Files.write(config, List.of("0", "3600"));
+        Class<?> coordinatorClass = Class.forName("Coordinator");
+        coordinator = coordinatorClass.getConstructor(String.class).newInstance(config.toString());
+
+        Class<?> clientClass = Class.forName("Coordinator$Client");
+        Constructor<?> newClient = clientClass.getDeclaredConstructor(long.class, SocketChannel.class, boolean.class, coordinatorClass);
+        newClient.setAccessible(true);
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        textClient = newClient.newInstance(1L, connect(), false, coordinator);
+        binaryClient = newClient.newInstance(2L, connect(), true, coordinator);
+
+        Method process = coordinatorClass.getDeclaredMethod("processInbound", clientClass);
+        process.setAccessible(true);
+        processInbound = lookup.unreflect(process);
+        setInbound = lookup.unreflectSetter(accessible(clientClass.getDeclaredField("inbound")));
+        setLastPublishSeq = lookup.unreflectSetter(accessible(clientClass.getDeclaredField("lastPublishSeq")));
+
+        // Where msends without a topic are retained
+        Method topicFor = coordinatorClass.getDeclaredMethod("topicFor", String.class);
+        topicFor.setAccessible(true);
+        Object topic = topicFor.invoke(coordinator, (String) null);
+        retention = accessible(topic.getClass().getDeclaredField("log")).get(topic);
+        Method evict = retention.getClass().getDeclaredMethod("evictOlderThan", long.class);
+        evict.setAccessible(true);
+        evictOlderThan = lookup.unreflect(evict);
+
+        Method putVarLong = Class.forName("WireProtocol").getDeclaredMethod("putVarLong", ByteBuffer.class, long.class);
+        putVarLong.setAccessible(true);
+        byte[] payload = "x".repeat(payloadBytes).getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        DataOutputStream textOut = new DataOutputStream(text);
+        for (int i = 0; i < FRAMES; i++) {
+            textOut.writeUTF("msend " + "x".repeat(payloadBytes));
+        }
+        textFrames = ByteBuffer.wrap(text.toByteArray());
+
+        msendFrames = ByteBuffer.allocate(FRAMES * (payloadBytes + 16));
+        publishFrames = ByteBuffer.allocate(FRAMES * (payloadBytes + 16));
+        for (int i = 1; i <= FRAMES; i++) {
+            putVarLong.invoke(null, msendFrames, 1L + payload.length);
+            msendFrames.put((byte) 5).put(payload);
+            ByteBuffer seq = ByteBuffer.allocate(10);
+            putVarLong.invoke(null, seq, (long) i);
+            putVarLong.invoke(null, publishFrames, 1L + seq.position() + payload.length);
+            publishFrames.put((byte) 6).put(seq.flip()).put(payload);
+        }
+        msendFrames.flip();
+        publishFrames.flip();
+        inbound = ByteBuffer.allocate(Math.max(textFrames.capacity(), msendFrames.capacity()) + 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void text() throws Throwable {
+        process(textClient, textFrames);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void msend() throws Throwable {
+        process(binaryClient, msendFrames);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void publish() throws Throwable {
+        // The same publish sequence numbers every time, so start the client over or they would only be acked
+        setLastPublishSeq.invoke(binaryClient, 0L);
+        process(binaryClient, publishFrames);
+    }
+
+    // Hands the frames to processInbound as if they had just been read into the client's buffer
+    private void process(Object client, ByteBuffer frames) throws Throwable {
+        inbound.clear();
+        inbound.put(frames.duplicate());
+        setInbound.invoke(client, inbound);
+        processInbound.invoke(coordinator, client);
+        evictOlderThan.invoke(retention, Long.MAX_VALUE);
+    }
+
+    // A loopback connection whose far end is read and thrown away, so replies never fill the socket buffer
+    private SocketChannel connect() throws IOException {
+        SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+        SocketChannel peer = server.accept();
+        channels.add(channel);
+        channels.add(peer);
+        Thread drain = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+            try {
+                while (peer.read(sink.clear()) >= 0) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Closed by tearDown
+            }
+        }, "reply-drain");
+        drain.setDaemon(true);
+        drain.start();
+        return channel;
+    }
+
+    private static Field accessible(Field field) {
+        field.setAccessible(true);
+        return field;
+    }
+}
@@ -0,0 +1,70 @@
+package pp3.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Reads every subscriber's message channel on one selector thread and counts the frames delivered,
+ * so a benchmark can wait until a multicast has reached all of them.
+ */
+final class DeliveryDrain implements Closeable {
+    private final Selector selector;
+    private final AtomicLong delivered = new AtomicLong();
+    private final Thread thread;
+
+    DeliveryDrain(Iterable<SocketChannel> channels) throws IOException {
+        selector = Selector.open();
+        for (SocketChannel channel : channels) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(64 * 1024));
+        }
+        thread = new Thread(this::drain, "delivery-drain");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    long delivered() {
+        return delivered.get();
+    }
+
+    void awaitDelivered(long target) {
+        while (delivered.get() < target) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private void drain() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ByteBuffer buffer = (ByteBuffer) key.attachment();
+                    if (((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    buffer.flip();
+                    delivered.addAndGet(BenchClient.countFrames(buffer));
+                    buffer.compact();
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            // Closed at teardown
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+}
@@ -0,0 +1,72 @@
+package pp3.bench;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Runs a Coordinator inside the benchmark JVM on free loopback ports, with the shared data port enabled.
+ * The coordinator lives in the default package, which can't be imported from here, so it is created reflectively.
+ */
+final class LoopbackCluster {
+    final int port;
+    final int dataPort;
+
+    private LoopbackCluster(int port, int dataPort) {
+        this.port = port;
+        this.dataPort = dataPort;
+    }
+
+    /*
+     * Starts a coordinator with the given retention window and extra name=value options and waits until it listens.
+     */
+    static LoopbackCluster start(long tdSeconds, String... options) throws Exception {
+        int port = freePort();
+        int dataPort = freePort();
+
+        List<String> config = new ArrayList<>();
+        config.add(String.valueOf(port));
+        config.add(String.valueOf(tdSeconds));
+        config.add("dataPort=" + dataPort);
+        config.addAll(List.of(options));
+        Path configFile = Files.createTempFile("coordinator", ".txt");
+        Files.write(configFile, config);
+
+        Object coordinator = Class.forName("Coordinator").getConstructor(String.class).newInstance(configFile.toString());
+        Method run = coordinator.getClass().getMethod("run");
+        Thread thread = new Thread(() -> {
+            try {
+                run.invoke(coordinator);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "coordinator");
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitListening(port);
+        return new LoopbackCluster(port, dataPort);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Coordinator did not start listening on " + port);
+    }
+}
@@ -0,0 +1,89 @@
+package pp3.bench;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Multicast fan-out against N loopback subscribers.
+ *   msendAck       time until the sender gets its OK (append + enqueue, independent of delivery)
+ *   msendDelivered time until every subscriber has read the message off its socket
+ * Large client counts need a raised open file limit (each subscriber costs four sockets in this JVM).
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MulticastBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int clients;
+
+    @Param({"eventloop", "virtual"})
+    public String executionMode;
+
+    @Param({"128"})
+    public int payloadBytes;
+
+    private BenchClient publisher;
+    private final List<BenchClient> subscribers = new ArrayList<>();
+    private DeliveryDrain drain;
+    private byte[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        LoopbackCluster cluster = LoopbackCluster.start(60, "executionMode=" + executionMode);
+        payload = new byte[payloadBytes];
+
+        List<SocketChannel> channels = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            BenchClient subscriber = new BenchClient(cluster, 1_000_000 + i);
+            subscriber.register();
+            subscribers.add(subscriber);
+            channels.add(subscriber.data());
+        }
+        drain = new DeliveryDrain(channels);
+        publisher = new BenchClient(cluster, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        drain.close();
+        publisher.close();
+        for (BenchClient subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void msendAck() throws IOException {
+        publisher.msend(payload);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void msendDelivered() throws IOException {
+        // Earlier msendAck messages may still be in flight, so wait for everything sent so far
+        long target = drain.delivered() + clients;
+        publisher.msend(payload);
+        drain.awaitDelivered(target);
+    }
+}
@@ -0,0 +1,71 @@
+package pp3.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Cost of a reconnect replay relative to the size of the retention window. The window is filled once per
+ * trial; every invocation connects a participant the coordinator has never seen (cursor 0), reconnects it and
+ * reads until the whole window has arrived.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplayBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int retained;
+
+    @Param({"128"})
+    public int payloadBytes;
+
+    private LoopbackCluster cluster;
+    private long nextId = 2_000_000;
+    private final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cluster = LoopbackCluster.start(3600);
+        byte[] payload = new byte[payloadBytes];
+        try (BenchClient publisher = new BenchClient(cluster, 1)) {
+            for (long seq = 1; seq <= retained; seq++) {
+                publisher.publish(seq, payload);
+            }
+            publisher.awaitAck(retained);
+        }
+    }
+
+    @Benchmark
+    public int replay() throws IOException {
+        try (BenchClient client = new BenchClient(cluster, nextId++)) {
+            client.reconnect();
+            int received = 0;
+            buffer.clear();
+            while (received < retained) {
+                if (client.data().read(buffer) < 0) {
+                    throw new IOException("Replay ended after " + received + " messages");
+                }
+                buffer.flip();
+                received += BenchClient.countFrames(buffer);
+                buffer.compact();
+            }
+            return received;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+class ClientRegistryTest {
+
+    @Test
+    void putGetAndReplace() {
+        ClientRegistry<String> registry = new ClientRegistry<>(4);
+        assertNull(registry.get(7));
+        assertNull(registry.put(7, "a"));
+        assertEquals("a", registry.put(7, "b"));
+        assertEquals("b", registry.get(7));
+        assertEquals(1, registry.size());
+
+        // Any long is a key, 0 and negative IDs included
+        registry.put(0, "zero");
+        registry.put(-1, "minus one");
+        registry.put(Long.MIN_VALUE, "min");
+        assertEquals("zero", registry.get(0));
+        assertEquals("minus one", registry.get(-1));
+        assertEquals("min", registry.get(Long.MIN_VALUE));
+        assertEquals(4, registry.size());
+    }
+
+    @Test
+    void growsAndIteratesEverything() {
+        ClientRegistry<Long> registry = new ClientRegistry<>(3);
+        Set<Long> expected = new HashSet<>();
+        for (long id = -5000; id < 5000; id += 3) {
+            registry.put(id, id);
+            expected.add(id);
+        }
+        for (long id : expected) {
+            assertEquals(id, registry.get(id));
+            assertTrue(registry.partitionOf(id) >= 0 && registry.partitionOf(id) < registry.partitions());
+        }
+        assertNull(registry.get(-4999));
+
+        Set<Long> seen = new HashSet<>();
+        for (Long client : registry) {
+            assertTrue(seen.add(client), "seen twice: " + client);
+        }
+        assertEquals(expected, seen);
+        assertEquals(expected.size(), registry.size());
+    }
+
+    /*
+     * Writers keep adding (and resizing) while readers look up the clients already there and iterate.
+     * Every lookup must find its client and every iteration must see everything put before it started.
+     */
+    @Test
+    void readersDuringConcurrentResizes() throws InterruptedException {
+        ClientRegistry<Long> registry = new ClientRegistry<>(2);
+        int preloaded = 1000, added = 200_000;
+        for (long id = 0; id < preloaded; id++) {
+            registry.put(id, id);
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            long first = preloaded + w;
+            threads.add(new Thread(() -> {
+                await(start);
+                for (long id = first; id < preloaded + added; id += 2) {
+                    registry.put(id, id);
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            await(start);
+            for (int round = 0; round < 200 && failure.get() == null; round++) {
+                for (long id = 0; id < preloaded; id++) {
+                    Long client = registry.get(id);
+                    if (client == null || client != id) {
+                        failure.compareAndSet(null, new AssertionError("lookup of " + id + " returned " + client));
+                    }
+                }
+            }
+        }));
+        threads.add(new Thread(() -> {
+            await(start);
+            for (int round = 0; round < 50 && failure.get() == null; round++) {
+                Set<Long> seen = new HashSet<>();
+                for (Long client : registry) {
+                    if (!seen.add(client)) {
+                        failure.compareAndSet(null, new AssertionError("iteration returned " + client + " twice"));
+                    }
+                }
+                for (long id = 0; id < preloaded; id++) {
+                    if (!seen.contains(id)) {
+                        failure.compareAndSet(null, new AssertionError("iteration missed " + id));
+                    }
+                }
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(preloaded + added, registry.size());
+        for (long id = 0; id < preloaded + added; id += 997) {
+            assertSame(registry.get(id), registry.get(id));
+            assertEquals(id, registry.get(id));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
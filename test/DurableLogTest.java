@@ -0,0 +1,148 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DurableLogTest {
+    private static final int RECORD_HEADER = 8 + 8 + 4 + 4 + 4;
+
+    @TempDir
+    Path directory;
+
+    private record Recovered(String topic, String payload, long seq, long timestamp) {}
+
+    private static byte[] payload(long seq) {
+        return ("message " + seq).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Writes seqs 1..count, one segment as long as segmentBytes holds them all
+    private void write(int count, String topic) throws IOException {
+        DurableLog log = new DurableLog(directory.toFile(), 64 << 10, 0);
+        for (long seq = 1; seq <= count; seq++) {
+            log.append(new Coordinator.Message(topic, payload(seq), seq, 1000 + seq, false));
+        }
+        log.sync();
+    }
+
+    private List<Recovered> recover() throws IOException {
+        List<Recovered> recovered = new ArrayList<>();
+        new DurableLog(directory.toFile(), 64 << 10, 0).recover((topic, payload, seq, timestamp) ->
+                recovered.add(new Recovered(topic, new String(payload, StandardCharsets.UTF_8), seq, timestamp)));
+        return recovered;
+    }
+
+    private Path segment() throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(path -> path.toString().endsWith(".seg")).findFirst().orElseThrow();
+        }
+    }
+
+    // Offset of the record for seq, given every record before it has the same topic
+    private static long offsetOf(long seq, String topic) {
+        long offset = 8;
+        for (long before = 1; before < seq; before++) {
+            offset += RECORD_HEADER + (topic == null ? 0 : topic.length()) + payload(before).length;
+        }
+        return offset;
+    }
+
+    @Test
+    void recoversEverythingWritten() throws IOException {
+        write(50, "news");
+        List<Recovered> recovered = recover();
+        assertEquals(50, recovered.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(new Recovered("news", "message " + (i + 1), i + 1, 1001 + i), recovered.get(i));
+        }
+    }
+
+    @Test
+    void truncatedSegmentStopsAtTheTornRecord() throws IOException {
+        write(20, null);
+        // Cut the file halfway through record 15, as a crash during the write would leave it
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+            channel.truncate(offsetOf(15, null) + RECORD_HEADER + 3);
+        }
+
+        List<Recovered> recovered = recover();
+        assertEquals(14, recovered.size());
+        assertEquals(14, recovered.get(13).seq());
+        assertEquals(null, recovered.get(0).topic());
+
+        // The end is marked, so the next recovery finds the same records
+        assertEquals(recovered, recover());
+    }
+
+    @Test
+    void truncatedHeaderIsDropped() throws IOException {
+        write(5, "t");
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+            channel.truncate(offsetOf(5, "t") + 10);
+        }
+        assertEquals(4, recover().size());
+    }
+
+    @Test
+    void corruptedPayloadStopsRecovery() throws IOException {
+        write(10, "t");
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), offsetOf(7, "t") + RECORD_HEADER + 1 + 2);
+        }
+        List<Recovered> recovered = recover();
+        assertEquals(6, recovered.size());
+        assertArrayEquals(payload(6), recovered.get(5).payload().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * A crash right after a roll leaves a segment with nothing but its header. Its name is the one the next
+     * roll wants, and if it were kept it would be evicted as an empty segment while being written to.
+     */
+    @Test
+    void segmentWithoutRecordsIsDeleted() throws IOException {
+        Path empty = directory.resolve(String.format("%020d.seg", 1));
+        Files.write(empty, ByteBuffer.allocate(64).putInt(0x50503353).putInt(2).array());
+        assertEquals(0, recover().size());
+        assertTrue(Files.notExists(empty));
+
+        DurableLog log = new DurableLog(directory.toFile(), 64 << 10, 0);
+        log.recover((topic, payload, seq, timestamp) -> { });
+        long now = System.currentTimeMillis();
+        for (long seq = 1; seq <= 3; seq++) {
+            log.append(new Coordinator.Message(null, payload(seq), seq, now, false));
+        }
+        assertEquals(0, log.deleteOlderThan(now - 60_000));
+        log.sync();
+        assertEquals(3, recover().size());
+    }
+
+    @Test
+    void rollNeverReusesATrackedSegment() throws IOException {
+        write(5, null);
+        DurableLog log = new DurableLog(directory.toFile(), 64 << 10, 0);
+        assertEquals(5, log.recover((topic, payload, seq, timestamp) -> { }));
+        // Numbering started over, the new segment would have the recovered one's name
+        assertThrows(IOException.class, () -> log.append(new Coordinator.Message(null, payload(1), 1, 2000, false)));
+        assertEquals(5, recover().size());
+    }
+
+    @Test
+    void olderFormatIsSetAside() throws IOException {
+        File old = directory.resolve(String.format("%020d.seg", 1)).toFile();
+        Files.write(old.toPath(), new byte[64]);
+        assertEquals(0, recover().size());
+        assertTrue(new File(old.getPath() + ".old").exists());
+    }
+}
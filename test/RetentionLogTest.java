@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Messages are restored with their own timestamps (seq * 10) so eviction can be driven without a clock.
+ * The ring starts at 16 slots; the tests evict from the front and append past the end so it wraps.
+ */
+class RetentionLogTest {
+
+    private static void restore(RetentionLog log, long fromSeq, long toSeq) {
+        for (long seq = fromSeq; seq <= toSeq; seq++) {
+            log.restore(null, new byte[] {(byte) seq}, seq, seq * 10);
+        }
+    }
+
+    private static List<Long> seqs(List<Coordinator.Message> messages) {
+        List<Long> seqs = new ArrayList<>();
+        for (Coordinator.Message message : messages) {
+            seqs.add(message.seq);
+        }
+        return seqs;
+    }
+
+    private static List<Long> range(long fromSeq, long toSeq) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = fromSeq; seq <= toSeq; seq++) {
+            seqs.add(seq);
+        }
+        return seqs;
+    }
+
+    @Test
+    void replayAfterWrap() {
+        RetentionLog log = new RetentionLog(false);
+        restore(log, 1, 16);
+        assertEquals(10, log.evictOlderThan(110)); // Drops 1..10, the oldest is now in slot 10
+        restore(log, 17, 26); // Fills the ring, wrapping round to slot 9
+
+        assertEquals(16, log.size());
+        assertEquals(range(11, 26), seqs(log.replayFrom(0, Integer.MAX_VALUE)));
+        assertEquals(range(15, 26), seqs(log.replayFrom(14, Integer.MAX_VALUE)));
+        assertEquals(range(16, 20), seqs(log.replayFrom(15, 5)));
+        assertEquals(List.of(), seqs(log.replayFrom(26, 10)));
+        assertEquals(6, log.countAfter(20));
+        assertEquals(21, log.firstAfter(20).seq);
+        assertNull(log.firstAfter(26));
+    }
+
+    @Test
+    void evictAcrossWrap() {
+        RetentionLog log = new RetentionLog(false);
+        restore(log, 1, 16);
+        log.evictOlderThan(130); // 13..16 left in the last slots
+        restore(log, 17, 28); // 17..28 in slots 0..11
+
+        assertEquals(8, log.evictOlderThan(210)); // Past the end of the ring and into its start
+        assertEquals(range(21, 28), seqs(log.replayFrom(0, Integer.MAX_VALUE)));
+        assertEquals(8, log.bytes());
+        assertEquals(8, log.evictOlderThan(Long.MAX_VALUE));
+        assertEquals(0, log.size());
+        assertEquals(0, log.bytes());
+        assertNull(log.firstAfter(0));
+    }
+
+    @Test
+    void growWhileWrapped() {
+        RetentionLog log = new RetentionLog(false);
+        restore(log, 1, 16);
+        log.evictOlderThan(90);
+        restore(log, 17, 100); // Grows from a wrapped ring, twice
+
+        assertEquals(92, log.size());
+        assertEquals(range(9, 100), seqs(log.replayFrom(0, Integer.MAX_VALUE)));
+        assertEquals(range(51, 100), seqs(log.replayFrom(50, Integer.MAX_VALUE)));
+        assertEquals(40, log.evictOlderThan(490));
+        assertEquals(range(49, 100), seqs(log.replayFrom(0, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void seqGapsFromOtherTopics() {
+        RetentionLog log = new RetentionLog(false);
+        for (long seq = 2; seq <= 40; seq += 2) {
+            log.restore("even", new byte[0], seq, seq);
+        }
+        assertEquals(List.of(12L, 14L, 16L), seqs(log.replayFrom(11, 3)));
+        assertEquals(List.of(12L, 14L, 16L), seqs(log.replayFrom(10, 3)));
+        assertEquals(15, log.countAfter(10));
+    }
+}
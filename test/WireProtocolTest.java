@@ -0,0 +1,66 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class WireProtocolTest {
+    private static final long[] VALUES = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1L << 40,
+            Long.MAX_VALUE, -1, -2, -128, Integer.MIN_VALUE, Long.MIN_VALUE};
+
+    @Test
+    void bufferVarintsRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        for (long value : VALUES) {
+            buffer.clear();
+            WireProtocol.putVarLong(buffer, value);
+            assertEquals(WireProtocol.varLongSize(value), buffer.position(), "size of " + value);
+            buffer.flip();
+            assertEquals(value, WireProtocol.getVarLong(buffer));
+            assertEquals(0, buffer.remaining());
+        }
+    }
+
+    @Test
+    void streamVarintsRoundTrip() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            long value = i < VALUES.length ? VALUES[i] : random.nextLong() >> random.nextInt(64);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            WireProtocol.writeVarLong(new DataOutputStream(bytes), value);
+            assertEquals(WireProtocol.varLongSize(value), bytes.size(), "size of " + value);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(value, WireProtocol.readVarLong(in));
+
+            // Both encodings are the same bytes
+            ByteBuffer buffer = ByteBuffer.allocate(10);
+            WireProtocol.putVarLong(buffer, value);
+            assertEquals(ByteBuffer.wrap(bytes.toByteArray()), buffer.flip());
+        }
+    }
+
+    @Test
+    void negativeIdsTakeTenBytes() {
+        assertEquals(10, WireProtocol.varLongSize(-1));
+        assertEquals(10, WireProtocol.varLongSize(Long.MIN_VALUE));
+        assertEquals(9, WireProtocol.varLongSize(Long.MAX_VALUE));
+    }
+
+    @Test
+    void truncatedVarint() {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        WireProtocol.putVarLong(buffer, 1L << 20);
+        buffer.flip().limit(2);
+        assertEquals(-1, WireProtocol.getVarLong(buffer));
+
+        byte[] cut = {(byte) 0x80, (byte) 0x80};
+        assertThrows(EOFException.class, () -> WireProtocol.readVarLong(new DataInputStream(new ByteArrayInputStream(cut))));
+    }
+}